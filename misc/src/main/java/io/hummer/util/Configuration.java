@@ -81,7 +81,55 @@ public class Configuration {
 	public static final String PROP_CACHE_IN_RAM = "cache.ram";
 	public static final String PROP_CACHE_IN_DB = "cache.db";
 	public static final String PROP_CACHE_OVERWRITE = "cache.overwrite";
-	
+	public static final String PROP_CACHE_WRITE_BEHIND = "cache.db.writeBehind";
+	public static final String PROP_CACHE_WRITE_BEHIND_BATCH = "cache.db.writeBehind.batchSize";
+	public static final String PROP_CACHE_WRITE_BEHIND_INTERVAL = "cache.db.writeBehind.intervalMS";
+	public static final String PROP_CACHE_COMPRESS_THRESHOLD = "cache.compress.threshold";
+	public static final String PROP_CACHE_FAILURE_TTL = "cache.load.failureTTLMS";
+	public static final String PROP_CACHE_PARSED_SIZE = "cache.parsed.size";
+	public static final String PROP_CACHE_HARD_TTL = "cache.hardTTLMS";
+	public static final String PROP_CACHE_HOT_ACCESS_COUNT = "cache.refreshAhead.accessCount";
+	public static final String PROP_CACHE_PURGE_INTERVAL = "cache.db.purgeIntervalMS";
+	public static final String PROP_CACHE_FILTER = "cache.db.filter";
+	public static final String PROP_CACHE_FILTER_KEYS = "cache.db.filter.expectedKeys";
+	public static final String PROP_CACHE_FILTER_FPP = "cache.db.filter.falsePositiveRate";
+	public static final String PROP_CACHE_FILTER_REBUILD = "cache.db.filter.rebuildIntervalMS";
+	public static final String PROP_CACHE_SNAPSHOT_FILE = "cache.snapshot.file";
+	public static final String PROP_CACHE_SNAPSHOT_VALUES = "cache.snapshot.values";
+	public static final String PROP_CACHE_SNAPSHOT_KEYS = "cache.snapshot.maxKeys";
+	public static final String PROP_CACHE_SNAPSHOT_INTERVAL = "cache.snapshot.intervalMS";
+	public static final String PROP_CACHE_SNAPSHOT_WARMUP = "cache.snapshot.warmupMS";
+	public static final String PROP_CACHE_PEER_ENABLED = "cache.peer.enabled";
+	public static final String PROP_CACHE_PEER_NODES = "cache.peer.nodes";
+	public static final String PROP_CACHE_PEER_TIMEOUT = "cache.peer.timeoutMS";
+	public static final String PROP_CACHE_PEER_SECRET = "cache.peer.secret";
+	public static final String PROP_CACHE_PEER_MAX_BODY = "cache.peer.maxBodyBytes";
+	public static final String PROP_DB_BATCH_SIZE = "db.jdbc.batchSize";
+	public static final String PROP_DB_FLUSH_SIZE = "db.bulk.flushSize";
+	public static final String PROP_DB_QUERY_PLAN_CACHE_SIZE = "db.query.planCacheSize";
+	public static final String PROP_DB_RESULT_CACHE_SIZE = "db.query.resultCacheSize";
+	public static final String PROP_DB_LOCK_STRIPES = "db.save.lockStripes";
+	public static final String PROP_DB_FETCH_SIZE = "db.query.fetchSize";
+	public static final String PROP_DB_EXECUTOR_THREADS = "db.executor.threads";
+	public static final String PROP_DB_EXECUTOR_QUEUE = "db.executor.queueSize";
+	public static final String PROP_DB_METRICS_ENABLED = "db.metrics.enabled";
+	public static final String PROP_DB_POOL_ENABLED = "db.pool.enabled";
+	public static final String PROP_DB_POOL_MIN_SIZE = "db.pool.minSize";
+	public static final String PROP_DB_POOL_MAX_SIZE = "db.pool.maxSize";
+	public static final String PROP_DB_POOL_IDLE_TIMEOUT = "db.pool.idleTimeoutSec";
+	public static final String PROP_DB_POOL_MAX_STATEMENTS = "db.pool.maxStatements";
+	public static final String PROP_DB_POOL_VALIDATION = "db.pool.validation";
+	public static final String PROP_DB_POOL_TEST_QUERY = "db.pool.testQuery";
+	public static final String PROP_DB_POOL_IDLE_TEST_PERIOD = "db.pool.idleTestPeriodSec";
+	public static final String PROP_DB_SLOW_QUERY_MS = "db.query.slowThresholdMS";
+	public static final String PROP_DB_READ_ROUTING = "db.read.routing";
+	public static final String PROP_DB_READ_WINDOW = "db.read.ownWritesWindowMS";
+	public static final String PROP_DB_INDEX_ADVISOR_ENABLED = "db.index.advisor.enabled";
+	public static final String PROP_DB_INDEX_ADVISOR_MIN_QUERIES = "db.index.advisor.minQueries";
+	public static final String PROP_MEMORY_PRESSURE_ENABLED = "memory.pressure.enabled";
+	public static final String PROP_MEMORY_PRESSURE_THRESHOLD = "memory.pressure.threshold";
+	public static final String PROP_MEMORY_PRESSURE_SHRINK = "memory.pressure.shrinkFraction";
+
 	public static final String PROP_CAPTCHA_VERIFY_URL = "captcha.verification.url";
 	public static final String PROP_CAPTCHA_PRIVATE_KEY = "captcha.privateKey";
 	public static final String PROP_CAPTCHA_PUBLIC_KEY = "captcha.publicKey";
@@ -183,6 +231,28 @@ public class Configuration {
 			return dflt;
 		}
 	}
+
+	public static Double getDouble(String key) {
+		return getDouble(key, null);
+	}
+	public static Double getDouble(String key, Double dflt) {
+		try {
+			if(key == null)
+				return dflt;
+			String s = getProps().getProperty(key);
+			if(s == null)
+				return dflt;
+			s = s.trim();
+			try {
+				return Double.parseDouble(s);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Unable to parse Double value of property named '" + key + "': " + s);
+			}
+		} catch (Exception e) {
+			logger.info("Unable to get Double property", e);
+			return dflt;
+		}
+	}
 	
 	public static synchronized void unsetValue(String key) throws Exception {
 		setValue(key, null);
@@ -0,0 +1,18 @@
+package io.hummer.util.coll;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator over resources (e.g., database cursors) which need to be 
+ * released after use. Implementations should release their resources 
+ * as soon as the iteration is complete, but callers which stop iterating 
+ * early have to call {@link #close()}.
+ * 
+ * @author Waldemar Hummer
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+	void close();
+
+}
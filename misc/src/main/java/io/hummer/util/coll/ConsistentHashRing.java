@@ -0,0 +1,82 @@
+package io.hummer.util.coll;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.StringUtils;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Consistent hash ring, which maps keys to nodes such that adding or
+ * removing a node only re-maps the keys of that node. Each node is placed
+ * on the ring at several (virtual) positions, derived from the string
+ * representation of the node, to balance the key distribution.
+ *
+ * @author Waldemar Hummer
+ */
+public class ConsistentHashRing<T> {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 100;
+
+	private final int virtualNodes;
+	private final SortedMap<Long,T> ring = new TreeMap<Long,T>();
+	private final Set<T> nodes = new LinkedHashSet<T>();
+
+	public ConsistentHashRing() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+	public ConsistentHashRing(int virtualNodes) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+	}
+
+	public synchronized void add(T node) {
+		if(!nodes.add(node)) {
+			return;
+		}
+		for(int i = 0; i < virtualNodes; i ++) {
+			ring.put(hash(node + "#" + i), node);
+		}
+	}
+
+	public synchronized void remove(T node) {
+		if(!nodes.remove(node)) {
+			return;
+		}
+		for(int i = 0; i < virtualNodes; i ++) {
+			long h = hash(node + "#" + i);
+			if(node.equals(ring.get(h))) {
+				ring.remove(h);
+			}
+		}
+	}
+
+	/**
+	 * Returns the node responsible for the given key,
+	 * or null if the ring is empty.
+	 */
+	public synchronized T get(String key) {
+		if(ring.isEmpty()) {
+			return null;
+		}
+		SortedMap<Long,T> tail = ring.tailMap(hash(key));
+		return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+	}
+
+	public synchronized List<T> getNodes() {
+		return new ArrayList<T>(nodes);
+	}
+
+	public synchronized boolean contains(T node) {
+		return nodes.contains(node);
+	}
+
+	private static long hash(String s) {
+		return Hashing.murmur3_128().hashBytes(StringUtils.getBytesUtf8(s)).asLong();
+	}
+
+}
@@ -0,0 +1,87 @@
+package io.hummer.util.coll;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter with (8-bit) counters instead of bits, which allows
+ * elements to be removed again. Elements are given as 64-bit hash
+ * values, from which the k counter positions are derived by double
+ * hashing. Counters saturate at 255 and are never decremented once
+ * saturated (which may only cause false positives, never false negatives).
+ *
+ * Only elements which have actually been added may be removed,
+ * otherwise the filter may produce false negatives.
+ *
+ * @author Waldemar Hummer
+ */
+public class CountingBloomFilter {
+
+	private static final int MAX_COUNT = 0xFF;
+
+	private final byte[] counters;
+	private final int numHashFunctions;
+
+	public CountingBloomFilter(int expectedElements, double falsePositiveRate) {
+		if(expectedElements <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Invalid filter parameters: " +
+					expectedElements + ", " + falsePositiveRate);
+		}
+		long size = (long)Math.ceil(-expectedElements * Math.log(falsePositiveRate) /
+				(Math.log(2) * Math.log(2)));
+		size = Math.max(1, Math.min(Integer.MAX_VALUE - 8, size));
+		this.counters = new byte[(int)size];
+		this.numHashFunctions = Math.max(1, (int)Math.round((double)size / expectedElements * Math.log(2)));
+	}
+
+	public synchronized void add(long hash) {
+		for(int i = 0; i < numHashFunctions; i ++) {
+			int idx = index(hash, i);
+			int count = counters[idx] & 0xFF;
+			if(count < MAX_COUNT) {
+				counters[idx] = (byte)(count + 1);
+			}
+		}
+	}
+
+	public synchronized void remove(long hash) {
+		for(int i = 0; i < numHashFunctions; i ++) {
+			int idx = index(hash, i);
+			int count = counters[idx] & 0xFF;
+			if(count > 0 && count < MAX_COUNT) {
+				counters[idx] = (byte)(count - 1);
+			}
+		}
+	}
+
+	public synchronized boolean mightContain(long hash) {
+		for(int i = 0; i < numHashFunctions; i ++) {
+			if(counters[index(hash, i)] == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(counters, (byte)0);
+	}
+
+	public int getSize() {
+		return counters.length;
+	}
+
+	public int getNumHashFunctions() {
+		return numHashFunctions;
+	}
+
+	private int index(long hash, int i) {
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32);
+		int combined = h1 + i * h2;
+		if(combined < 0) {
+			combined = ~combined;
+		}
+		return combined % counters.length;
+	}
+
+}
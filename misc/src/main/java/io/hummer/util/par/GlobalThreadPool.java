@@ -52,21 +52,41 @@ public class GlobalThreadPool {
 			execute(run);
 	}
 
+	/**
+	 * Handle of a periodic task, which allows to stop its further executions.
+	 */
+	public static class PeriodicTask {
+		private volatile boolean cancelled;
+		public void cancel() {
+			cancelled = true;
+		}
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
 	private static class PeriodicTaskWithVariableInterval extends TimerTask {
 		private Runnable actualRunnable;
 		private long intervalIfSuccessMS;
 		private long intervalIfErrorMS;
-		PeriodicTaskWithVariableInterval(Runnable actualRunnable, long intervalIfSuccessMS, long intervalIfErrorMS) {
+		private PeriodicTask handle;
+		PeriodicTaskWithVariableInterval(Runnable actualRunnable, long intervalIfSuccessMS, 
+				long intervalIfErrorMS, PeriodicTask handle) {
 			this.actualRunnable = actualRunnable;
 			this.intervalIfErrorMS = intervalIfErrorMS;
 			this.intervalIfSuccessMS = intervalIfSuccessMS;
+			this.handle = handle;
 		}
 		PeriodicTaskWithVariableInterval(PeriodicTaskWithVariableInterval other) {
 			this.actualRunnable = other.actualRunnable;
 			this.intervalIfErrorMS = other.intervalIfErrorMS;
 			this.intervalIfSuccessMS = other.intervalIfSuccessMS;
+			this.handle = other.handle;
 		}
 		public void run() {
+			if(handle.isCancelled()) {
+				return;
+			}
 			try {
 				actualRunnable.run();
 				timer.schedule(new PeriodicTaskWithVariableInterval(this), intervalIfSuccessMS);
@@ -76,12 +96,14 @@ public class GlobalThreadPool {
 		}
 	}
 	
-	public static void executePeriodically(final Runnable r, final long intervalIfSuccessMS, final long intervalIfErrorMS) {
-		timer.schedule(new PeriodicTaskWithVariableInterval(r, intervalIfSuccessMS, intervalIfErrorMS), 0);
+	public static PeriodicTask executePeriodically(final Runnable r, final long intervalIfSuccessMS, final long intervalIfErrorMS) {
+		PeriodicTask handle = new PeriodicTask();
+		timer.schedule(new PeriodicTaskWithVariableInterval(r, intervalIfSuccessMS, intervalIfErrorMS, handle), 0);
+		return handle;
 	}
 
-	public static void executePeriodically(final Runnable r, final long intervalMS) {
-		executePeriodically(r, intervalMS, intervalMS);
+	public static PeriodicTask executePeriodically(final Runnable r, final long intervalMS) {
+		return executePeriodically(r, intervalMS, intervalMS);
 	}
 
 	public static ExecutorService getExecutorService() {
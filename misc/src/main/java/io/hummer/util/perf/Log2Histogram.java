@@ -0,0 +1,84 @@
+package io.hummer.util.perf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values (e.g., latencies in
+ * microseconds, or sizes in bytes), with buckets of exponentially
+ * increasing width: bucket i holds the values in [2^(i-1), 2^i).
+ * Percentiles are approximated by the upper bound of the respective bucket.
+ *
+ * @author Waldemar Hummer
+ */
+public class Log2Histogram {
+
+	private static final int NUM_BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(NUM_BUCKETS - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			/* retry */
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : (double)sum.get() / c;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile (between 0 and 100).
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if(total == 0) {
+			return 0;
+		}
+		long threshold = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < NUM_BUCKETS; i ++) {
+			seen += buckets.get(i);
+			if(seen >= threshold && seen > 0) {
+				return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for(int i = 0; i < NUM_BUCKETS; i ++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + Math.round(getMean()) +
+				", p50=" + getPercentile(50) + ", p90=" + getPercentile(90) +
+				", p99=" + getPercentile(99) + ", max=" + getMax();
+	}
+
+}
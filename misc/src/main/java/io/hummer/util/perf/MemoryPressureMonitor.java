@@ -0,0 +1,188 @@
+package io.hummer.util.perf;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Central monitor for heap memory pressure. Caches register themselves as
+ * {@link Shrinkable}s, with a priority. When the usage of a heap memory pool
+ * exceeds the configured threshold (see {@link MemoryPoolMXBean#setUsageThreshold(long)}
+ * and {@link MemoryPoolMXBean#setCollectionUsageThreshold(long)}), each registered
+ * cache is asked to shed a fraction of its entries, starting with the lowest
+ * priority. Caches of higher priority shed a smaller fraction.
+ *
+ * @author Waldemar Hummer
+ */
+public class MemoryPressureMonitor {
+
+	/** caches which are cheap to re-populate */
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	/** caches which are expensive to re-populate */
+	public static final int PRIORITY_HIGH = 2;
+
+	public static final boolean ENABLED =
+			Configuration.getBoolean(Configuration.PROP_MEMORY_PRESSURE_ENABLED, true);
+	/** fraction of the maximum pool size above which memory pressure is signaled */
+	public static final double THRESHOLD =
+			Configuration.getDouble(Configuration.PROP_MEMORY_PRESSURE_THRESHOLD, 0.85);
+	/** fraction of entries to be shed by caches of lowest priority */
+	public static final double SHRINK_FRACTION =
+			Configuration.getDouble(Configuration.PROP_MEMORY_PRESSURE_SHRINK, 0.25);
+	private static final long MIN_SHRINK_INTERVAL_MS = 1000;
+
+	private static final Logger logger = LogUtil.getLogger(MemoryPressureMonitor.class);
+
+	/**
+	 * A cache which is able to release some of its entries.
+	 */
+	public static interface Shrinkable {
+		/**
+		 * Removes (approximately) the given fraction of entries,
+		 * and returns the number of removed entries.
+		 */
+		int shrink(double fraction);
+	}
+
+	private static class Registration {
+		final String name;
+		final int priority;
+		final Shrinkable shrinkable;
+		Registration(String name, int priority, Shrinkable shrinkable) {
+			this.name = name;
+			this.priority = priority;
+			this.shrinkable = shrinkable;
+		}
+	}
+
+	private static final List<Registration> registrations = new ArrayList<Registration>();
+	private static final AtomicBoolean installed = new AtomicBoolean();
+	private static final AtomicBoolean shrinking = new AtomicBoolean();
+	private static volatile long lastShrinkTime;
+
+	public static void register(String name, int priority, Shrinkable shrinkable) {
+		install();
+		synchronized (registrations) {
+			registrations.add(new Registration(name, priority, shrinkable));
+			Collections.sort(registrations, new Comparator<Registration>() {
+				public int compare(Registration o1, Registration o2) {
+					return o1.priority - o2.priority;
+				}
+			});
+		}
+	}
+
+	public static void unregister(Shrinkable shrinkable) {
+		synchronized (registrations) {
+			for(Iterator<Registration> i = registrations.iterator(); i.hasNext(); ) {
+				if(i.next().shrinkable == shrinkable) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Asks all registered caches to shed entries, in order of priority.
+	 * Caches of priority p shed fraction / (p + 1) of their entries.
+	 */
+	public static void shrink(double fraction) {
+		List<Registration> regs;
+		synchronized (registrations) {
+			regs = new ArrayList<Registration>(registrations);
+		}
+		StringBuilder b = new StringBuilder();
+		for(Registration r : regs) {
+			try {
+				int removed = r.shrinkable.shrink(fraction / (r.priority + 1));
+				b.append(" " + r.name + "=" + removed);
+			} catch (Exception e) {
+				logger.warn("Unable to shrink cache " + r.name, e);
+			}
+		}
+		logger.info("Shrunk caches due to memory pressure, removed entries:" + b);
+	}
+
+	/**
+	 * Removes the given fraction of entries from the given map, in iteration
+	 * order (i.e., oldest entries first, for insertion-ordered maps). The
+	 * caller is responsible for synchronizing on the map, if required.
+	 */
+	public static int removeFraction(Map<?,?> map, double fraction) {
+		int toRemove = (int)Math.ceil(map.size() * fraction);
+		int removed = 0;
+		for(Iterator<?> i = map.keySet().iterator(); i.hasNext() && removed < toRemove; removed ++) {
+			i.next();
+			i.remove();
+		}
+		return removed;
+	}
+
+	private static void onMemoryPressure(String poolName) {
+		long now = System.currentTimeMillis();
+		if(now - lastShrinkTime < MIN_SHRINK_INTERVAL_MS || !shrinking.compareAndSet(false, true)) {
+			return;
+		}
+		lastShrinkTime = now;
+		logger.info("Memory usage threshold exceeded in pool '" + poolName + "'.");
+		GlobalThreadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					shrink(SHRINK_FRACTION);
+				} finally {
+					shrinking.set(false);
+				}
+			}
+		});
+	}
+
+	private static void install() {
+		if(!ENABLED || !installed.compareAndSet(false, true)) {
+			return;
+		}
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			long max = pool.getUsage().getMax();
+			if(pool.getType() != MemoryType.HEAP || max <= 0) {
+				continue;
+			}
+			long threshold = (long)(max * THRESHOLD);
+			if(pool.isUsageThresholdSupported()) {
+				pool.setUsageThreshold(threshold);
+			}
+			if(pool.isCollectionUsageThresholdSupported()) {
+				pool.setCollectionUsageThreshold(threshold);
+			}
+		}
+		NotificationEmitter emitter = (NotificationEmitter)ManagementFactory.getMemoryMXBean();
+		emitter.addNotificationListener(new NotificationListener() {
+			public void handleNotification(Notification n, Object handback) {
+				if(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(n.getType()) ||
+						MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(n.getType())) {
+					onMemoryPressure(MemoryNotificationInfo.from(
+							(CompositeData)n.getUserData()).getPoolName());
+				}
+			}
+		}, null, null);
+	}
+
+}
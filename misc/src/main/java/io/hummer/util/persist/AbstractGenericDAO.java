@@ -1,20 +1,33 @@
 package io.hummer.util.persist;
 
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.CloseableIterator;
+import io.hummer.util.coll.LimitedSizeHashMap;
 import io.hummer.util.cp.ClasspathUtil;
 import io.hummer.util.log.LogUtil;
+import io.hummer.util.perf.MemoryPressureMonitor;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
@@ -25,6 +38,10 @@ import javax.persistence.Query;
 
 import org.apache.log4j.Logger;
 import org.hibernate.Criteria;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
 import org.hibernate.classic.Session;
 import org.hibernate.impl.SessionImpl;
 
@@ -37,18 +54,61 @@ import org.hibernate.impl.SessionImpl;
 public class AbstractGenericDAO {
 
 	public static final String PROP_CONNECTION_URL = "hibernate.connection.url";
+	public static final String PROP_JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+	public static final String PROP_ORDER_INSERTS = "hibernate.order_inserts";
+	public static final String PROP_ORDER_UPDATES = "hibernate.order_updates";
+	public static final String PROP_QUERY_PLAN_CACHE_SIZE = "hibernate.query.plan_cache_max_soft_references";
+
+	/** number of statements per JDBC batch, unless set via connection properties */
+	public static final int JDBC_BATCH_SIZE = 
+			Configuration.getInteger(Configuration.PROP_DB_BATCH_SIZE, 50);
+	/** number of entities per flush (and transaction) in {@link #saveAll(Iterator, boolean)} */
+	public static final int BULK_FLUSH_SIZE = 
+			Configuration.getInteger(Configuration.PROP_DB_FLUSH_SIZE, 500);
+	/** max. number of parsed query plans kept by Hibernate, unless set via connection properties */
+	public static final int QUERY_PLAN_CACHE_SIZE = 
+			Configuration.getInteger(Configuration.PROP_DB_QUERY_PLAN_CACHE_SIZE, 2048);
+	/** default max. number of cached query results, 0 disables the result cache */
+	public static final int RESULT_CACHE_SIZE = 
+			Configuration.getInteger(Configuration.PROP_DB_RESULT_CACHE_SIZE, 0);
+	/** default fetch size of the cursors used by {@link #iterate(Class, String, Map, int)} */
+	public static final int FETCH_SIZE = 
+			Configuration.getInteger(Configuration.PROP_DB_FETCH_SIZE, 100);
+	/** strategies for selecting a read replica, see {@link #setReadRouting(String, String)} */
+	public static final String ROUTING_ROUND_ROBIN = "roundRobin";
+	public static final String ROUTING_LEAST_LOADED = "leastLoaded";
+	/** default strategy for selecting a read replica */
+	public static final String READ_ROUTING = Configuration.getString(Configuration.PROP_DB_READ_ROUTING);
+	private static final int MAX_CACHED_QUERY_STRINGS = 1000;
+	private static final int SAVE_LOCK_STRIPES = 
+			Configuration.getInteger(Configuration.PROP_DB_LOCK_STRIPES, 64);
 
 	private static final int QUERY_RETRIES = 1;
 	private static final Logger logger = LogUtil.getLogger(AbstractGenericDAO.class);
 	public static Map<String, EntityManagerFactory> emfMap = new HashMap<String, EntityManagerFactory>();
+	/** time of last use of each entity manager factory in {@link #emfMap} */
+	private static final Map<String, Long> emfLastUsed = new ConcurrentHashMap<String, Long>();
+	/** factories which have not been used for this time are closed under memory pressure */
+	private static final long EMF_IDLE_MS = 1000 * 60 * 10;
+
+	static {
+		MemoryPressureMonitor.register("AbstractGenericDAO.emfMap", MemoryPressureMonitor.PRIORITY_HIGH, 
+				new MemoryPressureMonitor.Shrinkable() {
+			public int shrink(double fraction) {
+				return closeIdleEntityManagerFactories(EMF_IDLE_MS);
+			}
+		});
+	}
 
 	private static String PU_ANY = "";
+	/** max. connection pool size of all persistence units */
+	private static int maxPoolSize;
 
 	/**
 	 * This map is used to store AbstractGenericDAO instances. After some
 	 * performance tests we realized that keeping only one AbstractGenericDAO
 	 * (per persistence unit and connection properties map), and hence only one
-	 * EntityManager, seems to be more stable. Previously, instantiating
+	 * EntityManager per thread, seems to be more stable. Previously, instantiating
 	 * multiple DAOs has led to a connection leak (with MySQL backend).
 	 * 
 	 * the mapping of this variable is as follows: persistenceUnitName ->
@@ -62,18 +122,56 @@ public class AbstractGenericDAO {
 	 */
 	private static final Map<String, Map<String, String>> connectionPropertiesByPersistenceUnit = new HashMap<String, Map<String, String>>();
 
-	private final Object GLOBAL_LOCK = new Object();
-	private static final boolean DO_CACHE = false;
+	/** replica persistence units, by primary persistence unit, see {@link #forReads()} */
+	private static final Map<String, ReadReplicas> readReplicasByPersistenceUnit = new ConcurrentHashMap<String, ReadReplicas>();
+	/** time after a write during which the reads of the writing thread are not routed to replicas */
+	private static volatile long ownWritesWindowMS = 
+			Configuration.getLong(Configuration.PROP_DB_READ_WINDOW, 1000L);
+
+	/** locks for {@link #save(Object, Map, Object, String...)}, selected by identifier hash */
+	private final Object[] saveLocks = new Object[SAVE_LOCK_STRIPES];
+	private static final boolean DO_CACHE = true;
 
 	private final String persistenceUnitName;
 	private EntityManagerFactory emf;
-	private EntityManager em;
+	/** entity manager of the unit of work of the current thread, see {@link #execute(EntityManagerCallback)} */
+	private final ThreadLocal<EntityManager> unitOfWork = new ThreadLocal<EntityManager>();
+	/** entity manager used by the DAO methods outside of a unit of work, cleared before each operation */
+	private final ThreadLocal<EntityManager> threadEntityManager = new ThreadLocal<EntityManager>();
 	private final Map<String, String> connectionProperties = new HashMap<String, String>();
+	/** number of units of work currently executed, see {@link #ROUTING_LEAST_LOADED} */
+	private final AtomicInteger activeUnits = new AtomicInteger();
+	/** time of the last write of the current thread, if this DAO has read replicas */
+	private final ThreadLocal<Long> lastWriteTime = new ThreadLocal<Long>();
+	/** optional cache of query results, invalidated on writes through this DAO */
+	private volatile QueryResultCache resultCache;
+	/** JPQL strings built by {@link #load(Class, Map, String...)}, by query signature */
+	private static final Map<String, String> identifierQueries = 
+			Collections.synchronizedMap(new LimitedSizeHashMap<String, String>(MAX_CACHED_QUERY_STRINGS));
+
+	/**
+	 * Unit of work, executed with an entity manager provided by
+	 * {@link AbstractGenericDAO#execute(EntityManagerCallback)}.
+	 */
+	public static interface EntityManagerCallback<T> {
+		T execute(EntityManager em) throws Exception;
+	}
 
 	public static class QuerySpec {
 
 		public String query;
 		public Map<String, Object> variables;
+		public int firstResult = -1;
+		public int maxResults = -1;
+
+		public QuerySpec() {}
+		public QuerySpec(String query, Map<String, Object> variables, 
+				int firstResult, int maxResults) {
+			this.query = query;
+			this.variables = variables;
+			this.firstResult = firstResult;
+			this.maxResults = maxResults;
+		}
 
 		@Override
 		public int hashCode() {
@@ -82,6 +180,8 @@ public class AbstractGenericDAO {
 			result = prime * result + ((query == null) ? 0 : query.hashCode());
 			result = prime * result
 					+ ((variables == null) ? 0 : variables.hashCode());
+			result = prime * result + firstResult;
+			result = prime * result + maxResults;
 			return result;
 		}
 		@Override
@@ -103,10 +203,52 @@ public class AbstractGenericDAO {
 					return false;
 			} else if (!variables.equals(other.variables))
 				return false;
+			if (firstResult != other.firstResult || maxResults != other.maxResults)
+				return false;
 			return true;
 		}
 
 	}
+	/**
+	 * Replica persistence units of a primary unit, which serve reads.
+	 */
+	private static class ReadReplicas {
+		final List<String> persistenceUnits;
+		volatile String routing;
+		/** replica DAOs, resolved on first use */
+		volatile AbstractGenericDAO[] daos;
+		final AtomicInteger next = new AtomicInteger();
+
+		ReadReplicas(List<String> persistenceUnits, String routing) {
+			this.persistenceUnits = persistenceUnits;
+			this.routing = routing;
+		}
+
+		AbstractGenericDAO select() {
+			AbstractGenericDAO[] d = daos;
+			if (d == null) {
+				d = new AbstractGenericDAO[persistenceUnits.size()];
+				for (int i = 0; i < d.length; i++) {
+					d[i] = get(persistenceUnits.get(i));
+				}
+				daos = d;
+			}
+			int start = next.getAndIncrement() & Integer.MAX_VALUE;
+			if (!ROUTING_LEAST_LOADED.equals(routing)) {
+				return d[start % d.length];
+			}
+			/* start at a rotating offset, to spread reads among equally loaded replicas */
+			AbstractGenericDAO best = null;
+			for (int i = 0; i < d.length; i++) {
+				AbstractGenericDAO dao = d[(start + i) % d.length];
+				if (best == null || dao.activeUnits.get() < best.activeUnits.get()) {
+					best = dao;
+				}
+			}
+			return best;
+		}
+	}
+
 	public static class QueryResult {
 
 		public final List<String> itemNames = new LinkedList<String>();
@@ -155,8 +297,12 @@ public class AbstractGenericDAO {
 			logger.info("No JPA Persistence Unit name provided for entity manager factory: "
 					+ persistenceUnitName);
 		this.connectionProperties.putAll(props);
+		for (int i = 0; i < saveLocks.length; i++) {
+			saveLocks[i] = new Object();
+		}
 		this.emf = getEntityManagerFactory(persistenceUnitName,
 				this.connectionProperties);
+		setResultCacheSize(RESULT_CACHE_SIZE);
 	}
 
 	public static synchronized AbstractGenericDAO get(String persistenceUnitName) {
@@ -171,6 +317,7 @@ public class AbstractGenericDAO {
 						new HashMap<Map<String, String>, AbstractGenericDAO>());
 			}
 			if (!instances.get(persistenceUnitName).containsKey(props)) {
+				props = new HashMap<String, String>(props);
 				instances.get(persistenceUnitName).put(props,
 						new AbstractGenericDAO(persistenceUnitName, props));
 			}
@@ -195,11 +342,24 @@ public class AbstractGenericDAO {
 			props.putAll(connectionPropertiesByPersistenceUnit
 					.get(persistenceUnit));
 		}
+		/* defaults, unless defined by the unit itself (props override persistence.xml) */
+		Map<String, String> unitProps = PersistenceUnitProperties.get(persistenceUnit);
+		putDefault(props, unitProps, PROP_JDBC_BATCH_SIZE, String.valueOf(JDBC_BATCH_SIZE));
+		putDefault(props, unitProps, PROP_ORDER_INSERTS, "true");
+		putDefault(props, unitProps, PROP_ORDER_UPDATES, "true");
+		putDefault(props, unitProps, PROP_QUERY_PLAN_CACHE_SIZE, String.valueOf(QUERY_PLAN_CACHE_SIZE));
+		int poolSize = ConnectionPool.configure(props, unitProps);
+		if (poolSize > maxPoolSize) {
+			/* one DB executor thread per pooled connection */
+			maxPoolSize = poolSize;
+			DatabaseExecutor.setNumThreads(poolSize);
+		}
 
 		if (forceReload) {
 			emfMap.remove(persistenceUnit);
 		}
 
+		markUsed(persistenceUnit);
 		if (emfMap.containsKey(persistenceUnit)) {
 			return emfMap.get(persistenceUnit);
 		}
@@ -225,6 +385,47 @@ public class AbstractGenericDAO {
 		}
 	}
 	
+	private static void putDefault(Map<String, String> props,
+			Map<String, String> unitProps, String key, String value) {
+		if (!props.containsKey(key) && !unitProps.containsKey(key)) {
+			props.put(key, value);
+		}
+	}
+
+	private static void markUsed(String persistenceUnit) {
+		if (persistenceUnit != null) {
+			emfLastUsed.put(persistenceUnit, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Closes (and removes from {@link #emfMap}) all entity manager 
+	 * factories which have not been used for the given time.
+	 * DAOs still referencing a closed factory re-obtain a new one.
+	 */
+	public static synchronized int closeIdleEntityManagerFactories(long idleMS) {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Iterator<Entry<String, EntityManagerFactory>> i = emfMap.entrySet().iterator(); i.hasNext(); ) {
+			Entry<String, EntityManagerFactory> e = i.next();
+			if (e.getKey() == null) {
+				continue;
+			}
+			Long lastUsed = emfLastUsed.get(e.getKey());
+			if (lastUsed == null || now - lastUsed >= idleMS) {
+				i.remove();
+				emfLastUsed.remove(e.getKey());
+				try {
+					e.getValue().close();
+				} catch (Exception e1) {
+					logger.info("Unable to close entity manager factory for " + e.getKey() + ": " + e1);
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
 	private static ClassLoader setTempClassloader() {
 		final Thread currentThread = Thread.currentThread();
 		final ClassLoader saveClassLoader = currentThread.getContextClassLoader();
@@ -247,25 +448,220 @@ public class AbstractGenericDAO {
 		}
 		connectionPropertiesByPersistenceUnit.get(persistenceUnit).put(key,
 				value);
+		synchronized (AbstractGenericDAO.class) {
+			if (PU_ANY.equals(persistenceUnit)) {
+				instances.clear();
+			} else {
+				instances.remove(persistenceUnit);
+			}
+			for (ReadReplicas r : readReplicasByPersistenceUnit.values()) {
+				r.daos = null;
+			}
+			if (ConnectionPool.isPoolProperty(key)) {
+				/* the pool is created with the factory, hence re-create the factory */
+				for (String pu : new ArrayList<String>(emfMap.keySet())) {
+					if (PU_ANY.equals(persistenceUnit) || persistenceUnit.equals(pu)) {
+						EntityManagerFactory f = emfMap.remove(pu);
+						if (f != null && f.isOpen()) {
+							f.close();
+						}
+					}
+				}
+			}
+		}
 	}
 
-	private synchronized EntityManager getEntityManager() {
-		if (em == null) {
-			// logger.info("Creating new EntityManager.");
-			final ClassLoader savedClassLoader = setTempClassloader();
-			try {
-				em = emf.createEntityManager();
-			} catch (Exception e) {
-				logger.warn("Unable to create entity manager. Factory is: " + emf);
-				throw new RuntimeException(e);
-			} finally {
-				resetTempClassloader(savedClassLoader);
-			}
-			em = new EntityManagerWrapper(em);
+	/**
+	 * Routes the reads of the given persistence unit (issued via {@link #forReads()} 
+	 * or {@link #executeRead(EntityManagerCallback)}) to the given replica units. 
+	 * Replicas are expected to contain the same entities as the primary unit, 
+	 * e.g., by means of database replication. No replicas disable the routing.
+	 */
+	public static void setReadReplicas(String persistenceUnit, String... replicaUnits) {
+		if (replicaUnits.length == 0) {
+			readReplicasByPersistenceUnit.remove(persistenceUnit);
+			return;
+		}
+		ReadReplicas existing = readReplicasByPersistenceUnit.get(persistenceUnit);
+		String routing = existing != null ? existing.routing : READ_ROUTING;
+		readReplicasByPersistenceUnit.put(persistenceUnit, 
+				new ReadReplicas(Arrays.asList(replicaUnits), routing));
+	}
+
+	/**
+	 * Sets the strategy for selecting a read replica of the given persistence
+	 * unit, either {@link #ROUTING_ROUND_ROBIN} or {@link #ROUTING_LEAST_LOADED}
+	 * (the replica with the fewest units of work in progress in this JVM).
+	 */
+	public static void setReadRouting(String persistenceUnit, String routing) {
+		ReadReplicas replicas = readReplicasByPersistenceUnit.get(persistenceUnit);
+		if (replicas == null) {
+			throw new IllegalStateException("No read replicas configured for persistence unit " + persistenceUnit);
+		}
+		replicas.routing = routing;
+	}
+
+	/**
+	 * Sets the time after a write during which the reads of the 
+	 * writing thread are served by the primary persistence unit.
+	 */
+	public static void setOwnWritesWindow(long windowMS) {
+		ownWritesWindowMS = windowMS;
+	}
+
+	/**
+	 * Returns the statistics of all connection pools, see {@link ConnectionPool#getStatistics()}.
+	 */
+	public static Map<String, Map<String, Object>> getConnectionPoolStatistics() {
+		return ConnectionPool.getStatistics();
+	}
+
+	/**
+	 * Returns the entity manager of the current unit of work, if any, 
+	 * or otherwise the entity manager of the current thread. The persistence 
+	 * context of the latter is cleared (unless a transaction is active), so 
+	 * that each DAO operation sees the current state of the database and 
+	 * entities are not kept across unrelated DAO calls.
+	 */
+	private EntityManager getEntityManager() {
+		EntityManager em = unitOfWork.get();
+		if (em != null) {
+			return em;
+		}
+		markUsed(persistenceUnitName);
+		em = threadEntityManager.get();
+		if (em == null || !em.isOpen() || !em.getEntityManagerFactory().isOpen()) {
+			em = newEntityManager();
+			threadEntityManager.set(em);
+		} else if (!em.getTransaction().isActive()) {
+			em.clear();
 		}
 		return em;
 	}
 
+	private synchronized EntityManager newEntityManager() {
+		markUsed(persistenceUnitName);
+		if (!emf.isOpen()) {
+			emf = getEntityManagerFactory(persistenceUnitName, connectionProperties);
+		}
+		final ClassLoader savedClassLoader = setTempClassloader();
+		try {
+			return new EntityManagerWrapper(emf.createEntityManager());
+		} catch (Exception e) {
+			logger.warn("Unable to create entity manager. Factory is: " + emf);
+			throw new RuntimeException(e);
+		} finally {
+			resetTempClassloader(savedClassLoader);
+		}
+	}
+
+	/**
+	 * Executes the given unit of work with an entity manager which is 
+	 * closed afterwards. Nested invocations on the same thread share
+	 * the entity manager of the outermost invocation, which is also used
+	 * by the DAO methods invoked within the unit of work.
+	 */
+	public <T> T execute(EntityManagerCallback<T> callback) {
+		EntityManager em = unitOfWork.get();
+		if (em != null) {
+			return invoke(callback, em);
+		}
+		em = newEntityManager();
+		unitOfWork.set(em);
+		activeUnits.incrementAndGet();
+		try {
+			return invoke(callback, em);
+		} finally {
+			activeUnits.decrementAndGet();
+			unitOfWork.remove();
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			if (((EntityManagerWrapper) em).getCommitCount() > 0) {
+				invalidateResults(null);
+			}
+			em.close();
+		}
+	}
+
+	/**
+	 * Returns the DAO to be used for read-only operations, i.e., a replica of 
+	 * this DAO's persistence unit (see {@link #setReadReplicas(String, String...)}).
+	 * This DAO itself is returned if no replicas are configured, within a unit 
+	 * of work, or if the current thread has written through this DAO shortly 
+	 * before (see {@link #setOwnWritesWindow(long)}), so that it reads its own 
+	 * writes regardless of the replication lag.
+	 */
+	public AbstractGenericDAO forReads() {
+		ReadReplicas replicas = readReplicasByPersistenceUnit.get(persistenceUnitName);
+		if (replicas == null || unitOfWork.get() != null) {
+			return this;
+		}
+		Long lastWrite = lastWriteTime.get();
+		if (lastWrite != null) {
+			if (System.currentTimeMillis() - lastWrite < ownWritesWindowMS) {
+				return this;
+			}
+			lastWriteTime.remove();
+		}
+		return replicas.select();
+	}
+
+	/**
+	 * Executes the given read-only unit of work with the DAO returned by 
+	 * {@link #forReads()}. If it fails on a replica, it is repeated 
+	 * with this DAO.
+	 */
+	public <T> T executeRead(EntityManagerCallback<T> callback) {
+		AbstractGenericDAO dao = forReads();
+		if (dao == this) {
+			return execute(callback);
+		}
+		try {
+			return dao.execute(callback);
+		} catch (RuntimeException e) {
+			logger.info("Read from replica " + dao.persistenceUnitName + 
+					" failed, using " + persistenceUnitName + ": " + e);
+			return execute(callback);
+		}
+	}
+
+	/**
+	 * Executes the given unit of work within a transaction, which 
+	 * is committed afterwards, or rolled back in case of an exception. 
+	 * Within an enclosing transaction, the callback is simply invoked.
+	 */
+	public <T> T executeInTransaction(final EntityManagerCallback<T> callback) {
+		return execute(new EntityManagerCallback<T>() {
+			public T execute(EntityManager em) throws Exception {
+				if (em.getTransaction().isActive()) {
+					return callback.execute(em);
+				}
+				em.getTransaction().begin();
+				try {
+					T result = callback.execute(em);
+					em.getTransaction().commit();
+					invalidateResults(null);
+					return result;
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+				}
+			}
+		});
+	}
+
+	private static <T> T invoke(EntityManagerCallback<T> callback, EntityManager em) {
+		try {
+			return callback.execute(em);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public <T> T findById(EntityManager em, Class<T> entityClazz, Object id) {
 		return em.find(entityClazz, id);
 	}
@@ -286,7 +682,9 @@ public class AbstractGenericDAO {
 	}
 
 	public <T> T merge(EntityManager em, T entity) {
-		return em.merge(entity);
+		T result = em.merge(entity);
+		invalidateResults(entity.getClass());
+		return result;
 	}
 
 	public void remove(Object entity) {
@@ -295,6 +693,7 @@ public class AbstractGenericDAO {
 	}
 
 	public void remove(EntityManager em, Object entity) {
+		invalidateResults(entity.getClass());
 		try {
 			em.remove(entity);
 		} catch (Exception e) {
@@ -327,7 +726,7 @@ public class AbstractGenericDAO {
 		EntityManager em = getEntityManager();
 
 		if (synchronizationLockObject == null) {
-			synchronizationLockObject = GLOBAL_LOCK;
+			synchronizationLockObject = getSaveLock(entity.getClass(), identifiers);
 		}
 
 		synchronized (synchronizationLockObject) {
@@ -347,11 +746,52 @@ public class AbstractGenericDAO {
 				entity = em.merge(entity);
 			}
 			em.getTransaction().commit();
+			invalidateResults(entity.getClass());
 		}
 
 		return entity;
 	}
 
+	/**
+	 * Returns the lock which serializes (within this JVM) concurrent saves 
+	 * of entities with equal identifiers. Saves of entities with different 
+	 * identifiers mostly use different locks and hence run in parallel.
+	 */
+	private Object getSaveLock(Class<?> entityClass, Map<String, Object> identifiers) {
+		int hash = getEntityName(entityClass).hashCode();
+		for (Entry<String, Object> e : identifiers.entrySet()) {
+			/* use a commutative combination, as the map order is not defined */
+			hash += e.getKey().hashCode() ^ getIdentifierHash(e.getValue());
+		}
+		hash ^= (hash >>> 16);
+		return saveLocks[(hash & Integer.MAX_VALUE) % saveLocks.length];
+	}
+
+	private static int getIdentifierHash(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof List<?>) {
+			int hash = 1;
+			for (Object o : (List<?>) value) {
+				hash = 31 * hash + getIdentifierHash(o);
+			}
+			return hash;
+		}
+		if (!value.getClass().getName().startsWith("java.")) {
+			/* entities (and their proxies) may not implement hashCode(), hence use their ID */
+			try {
+				Object id = getEntityID(value);
+				if (id != null) {
+					return id.hashCode();
+				}
+			} catch (Exception e) {
+				/* fall through */
+			}
+		}
+		return value.hashCode();
+	}
+
 	public <T> T save(T entity) {
 		EntityManager em = getEntityManager();
 		em.getTransaction().begin();
@@ -363,40 +803,288 @@ public class AbstractGenericDAO {
 			entity = em.merge(entity);
 		}
 		em.getTransaction().commit();
+		invalidateResults(entity.getClass());
 		return entity;
 	}
 
-	public static Object getEntityID(Object entity) throws Exception {
-		for (Field f : getAllDeclaredFields(entity.getClass())) {
-			if (f.isAnnotationPresent(Id.class)) {
-				f.setAccessible(true);
-				return f.get(entity);
+	public int saveAll(Iterable<?> entities) {
+		return saveAll(entities.iterator(), false);
+	}
+
+	public int saveAll(Iterable<?> entities, boolean stateless) {
+		return saveAll(entities.iterator(), stateless);
+	}
+
+	/**
+	 * Persists all given entities, in transactions of {@link #BULK_FLUSH_SIZE} 
+	 * entities, using JDBC batch inserts (see {@link #JDBC_BATCH_SIZE}; note that 
+	 * Hibernate does not batch inserts of entities with IDENTITY-generated IDs).
+	 * The persistence context is cleared after each transaction, hence the 
+	 * entities are detached afterwards. If a chunk cannot be persisted, it is 
+	 * retried using merge. In stateless mode, a Hibernate StatelessSession is 
+	 * used, which bypasses the first-level cache (and cascades, interceptors).
+	 * 
+	 * @return the number of stored entities
+	 */
+	public int saveAll(Iterator<?> entities, boolean stateless) {
+		if (stateless) {
+			return writeStateless(entities, false);
+		}
+		return writeAll(entities, false);
+	}
+
+	public int mergeAll(Iterable<?> entities) {
+		return mergeAll(entities.iterator(), false);
+	}
+
+	/**
+	 * Merges all given entities, in chunks, like {@link #saveAll(Iterator, boolean)}.
+	 * In stateless mode, entities without ID are inserted and all others updated.
+	 */
+	public int mergeAll(Iterator<?> entities, boolean stateless) {
+		if (stateless) {
+			return writeStateless(entities, true);
+		}
+		return writeAll(entities, true);
+	}
+
+	private int writeAll(Iterator<?> entities, boolean merge) {
+		EntityManager em = openEntityManager();
+		try {
+			int count = 0;
+			List<Object> chunk = new ArrayList<Object>(BULK_FLUSH_SIZE);
+			while (entities.hasNext()) {
+				chunk.add(entities.next());
+				if (chunk.size() >= BULK_FLUSH_SIZE || !entities.hasNext()) {
+					try {
+						writeChunk(em, chunk, merge);
+					} catch (RuntimeException e) {
+						if (merge) {
+							throw e;
+						}
+						logger.info("Unable to persist chunk of " + chunk.size() 
+								+ " entities, retrying with merge: " + e);
+						writeChunk(em, chunk, true);
+					}
+					count += chunk.size();
+					chunk.clear();
+				}
+			}
+			return count;
+		} finally {
+			em.close();
+		}
+	}
+
+	private void writeChunk(EntityManager em, List<Object> chunk, boolean merge) {
+		em.getTransaction().begin();
+		try {
+			for (Object entity : chunk) {
+				if (merge) {
+					em.merge(entity);
+				} else {
+					em.persist(entity);
+				}
+			}
+			em.flush();
+			em.getTransaction().commit();
+		} finally {
+			invalidateResultsOf(chunk);
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.clear();
+		}
+	}
+
+	private int writeStateless(Iterator<?> entities, boolean merge) {
+		EntityManager em = openEntityManager();
+		StatelessSession session = null;
+		Transaction tx = null;
+		try {
+			session = ((org.hibernate.Session) em.getDelegate())
+					.getSessionFactory().openStatelessSession();
+			int count = 0;
+			tx = session.beginTransaction();
+			while (entities.hasNext()) {
+				Object entity = entities.next();
+				if (merge && getEntityID(entity) != null) {
+					session.update(entity);
+				} else {
+					session.insert(entity);
+				}
+				invalidateResults(entity.getClass());
+				if (++count % BULK_FLUSH_SIZE == 0) {
+					tx.commit();
+					tx = session.beginTransaction();
+				}
+			}
+			tx.commit();
+			return count;
+		} catch (Exception e) {
+			if (tx != null && tx.isActive()) {
+				tx.rollback();
+			}
+			throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+		} finally {
+			if (session != null) {
+				session.close();
+			}
+			em.close();
+		}
+	}
+
+	/**
+	 * Enables the cache of query results of this DAO, with the given max. 
+	 * number of results, or disables it if maxSize is 0. Cached results 
+	 * (entities) are shared between callers, and are invalidated on writes 
+	 * through this DAO only, not on writes by other processes.
+	 */
+	public synchronized void setResultCacheSize(int maxSize) {
+		if (resultCache != null) {
+			MemoryPressureMonitor.unregister(resultCache);
+		}
+		resultCache = null;
+		if (maxSize > 0) {
+			QueryResultCache cache = new QueryResultCache(maxSize);
+			MemoryPressureMonitor.register("AbstractGenericDAO.resultCache", 
+					MemoryPressureMonitor.PRIORITY_LOW, cache);
+			resultCache = cache;
+		}
+	}
+
+	public QueryResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Invalidates cached results for the given entity class, or 
+	 * all cached results if the class is null.
+	 */
+	private void invalidateResults(Class<?> entityClass) {
+		invalidate(resultCache, entityClass);
+		markWritten(entityClass);
+	}
+
+	private static void invalidate(QueryResultCache cache, Class<?> entityClass) {
+		if (cache != null) {
+			if (entityClass == null) {
+				cache.invalidateAll();
+			} else {
+				cache.invalidate(entityClass);
 			}
 		}
-		for (Method m : getAllDeclaredMethods(entity.getClass())) {
-			if (m.isAnnotationPresent(Id.class)) {
-				m.setAccessible(true);
-				return m.invoke(entity);
+	}
+
+	private void invalidateResultsOf(Collection<?> entities) {
+		if (resultCache != null || readReplicasByPersistenceUnit.containsKey(persistenceUnitName)) {
+			Set<Class<?>> classes = new HashSet<Class<?>>();
+			for (Object entity : entities) {
+				if (classes.add(entity.getClass())) {
+					invalidateResults(entity.getClass());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records a write of the current thread, for routing its subsequent reads.
+	 * Since results cached by the replicas become stale once the write is 
+	 * replicated, they are invalidated as well.
+	 */
+	private void markWritten(Class<?> entityClass) {
+		ReadReplicas replicas = readReplicasByPersistenceUnit.get(persistenceUnitName);
+		if (replicas == null) {
+			return;
+		}
+		lastWriteTime.set(System.currentTimeMillis());
+		AbstractGenericDAO[] daos = replicas.daos;
+		if (daos != null) {
+			for (AbstractGenericDAO dao : daos) {
+				invalidate(dao.resultCache, entityClass);
 			}
 		}
+	}
+
+	/**
+	 * Accessor for the @Id field or property of an entity class.
+	 */
+	private static class IdAccessor {
+		Field field;
+		Method getter;
+		Method setter;
+
+		static IdAccessor create(Class<?> clazz) {
+			IdAccessor a = new IdAccessor();
+			for (Field f : getAllDeclaredFields(clazz)) {
+				if (f.isAnnotationPresent(Id.class)) {
+					f.setAccessible(true);
+					a.field = f;
+					return a;
+				}
+			}
+			for (Method m : getAllDeclaredMethods(clazz)) {
+				if (m.isAnnotationPresent(Id.class)) {
+					m.setAccessible(true);
+					if (m.getParameterTypes().length == 1) {
+						a.setter = m;
+					} else {
+						a.getter = m;
+						a.setter = findSetter(clazz, m);
+					}
+					return a;
+				}
+			}
+			return a;
+		}
+
+		private static Method findSetter(Class<?> clazz, Method getter) {
+			String name = getter.getName().replaceFirst("^(get|is)", "set");
+			for (Method m : getAllDeclaredMethods(clazz)) {
+				if (m.getName().equals(name) && m.getParameterTypes().length == 1) {
+					m.setAccessible(true);
+					return m;
+				}
+			}
+			/* fall back to the annotated method, as in previous versions */
+			return getter;
+		}
+	}
+
+	/** ID accessors by entity class, see {@link #getEntityID(Object)} */
+	private static final Map<Class<?>, IdAccessor> idAccessors = 
+			new ConcurrentHashMap<Class<?>, IdAccessor>();
+
+	private static IdAccessor getIdAccessor(Class<?> clazz) {
+		IdAccessor a = idAccessors.get(clazz);
+		if (a == null) {
+			a = IdAccessor.create(clazz);
+			idAccessors.put(clazz, a);
+		}
+		return a;
+	}
+
+	public static Object getEntityID(Object entity) throws Exception {
+		IdAccessor a = getIdAccessor(entity.getClass());
+		if (a.field != null) {
+			return a.field.get(entity);
+		}
+		if (a.getter != null) {
+			return a.getter.invoke(entity);
+		}
 		return null;
 	}
 
 	public static boolean setEntityID(Object entity, Object id)
 			throws Exception {
-		for (Field f : getAllDeclaredFields(entity.getClass())) {
-			if (f.isAnnotationPresent(Id.class)) {
-				f.setAccessible(true);
-				f.set(entity, id);
-				return true;
-			}
+		IdAccessor a = getIdAccessor(entity.getClass());
+		if (a.field != null) {
+			a.field.set(entity, id);
+			return true;
 		}
-		for (Method m : getAllDeclaredMethods(entity.getClass())) {
-			if (m.isAnnotationPresent(Id.class)) {
-				m.setAccessible(true);
-				m.invoke(entity, id);
-				return true;
-			}
+		if (a.setter != null) {
+			a.setter.invoke(entity, id);
+			return true;
 		}
 		return false;
 	}
@@ -434,44 +1122,42 @@ public class AbstractGenericDAO {
 	public <T> T load(Class<T> entityClass, Map<String, Object> identifiers,
 			String... optionalIdentifierNames) {
 		EntityManager em = getEntityManager();
-		String tableAlias = "myalias1.";
 		String entityName = getEntityName(entityClass);
-		String query = "from " + entityName + " myalias1 where ";
+		StringBuilder signature = new StringBuilder(entityName);
+		List<String> optional = Arrays.asList(optionalIdentifierNames);
 		int counter = 0;
 		Map<String, Object> ids = new HashMap<String, Object>();
 		for (Entry<String, Object> e : identifiers.entrySet()) {
-			String key = "identifierField" + counter;
-			Object value = e.getValue();
-			String opt = Arrays.asList(optionalIdentifierNames).contains(
-					e.getKey()) ? (tableAlias + e.getKey() + " IS NULL or ")
-					: "";
-			if (value instanceof List<?>) {
-				int counter1 = 0;
-				List<?> list = (List<?>) value;
-				if (list.size() > 0) {
-					query += (counter > 0 ? " and " : "") + "(" + opt + "(";
-
-					query += "(size(" + tableAlias + e.getKey() + ")="
-							+ list.size() + ") and ";
-					for (Object o : list) {
-						String listKey = key + "_" + counter1;
-						query += (counter1 > 0 ? " and " : "") + ":" + listKey
-								+ "=" + tableAlias + e.getKey() + "["
-								+ counter1 + "]";
-						counter1++;
-					}
-
-					query += "))";
-				}
-			} else {
-				query += (counter > 0 ? " and " : "") + "(" + opt + tableAlias
-						+ e.getKey() + "=:" + key + ")";
+			signature.append("|").append(e.getKey());
+			if (e.getValue() instanceof List<?>) {
+				signature.append("[").append(((List<?>) e.getValue()).size()).append("]");
 			}
-			ids.put(key, e.getValue());
+			if (optional.contains(e.getKey())) {
+				signature.append("?");
+			}
+			ids.put("identifierField" + counter, e.getValue());
 			counter++;
 		}
+		String query = identifierQueries.get(signature.toString());
+		if (query == null) {
+			query = buildIdentifierQuery(entityName, identifiers, optional);
+			identifierQueries.put(signature.toString(), query);
+		}
+
+		QueryResultCache cache = resultCache;
+		QuerySpec spec = null;
+		long generation = 0;
+		if (cache != null) {
+			spec = new QuerySpec(query, ids, -1, -1);
+			Object cached = cache.get(spec);
+			if (cached != QueryResultCache.MISS) {
+				return (T) cached;
+			}
+			generation = cache.getGeneration();
+		}
 
 		synchronized (em) {
+			long start = System.nanoTime();
 			Query q = em.createQuery(query);
 			for (Entry<String, Object> e : ids.entrySet()) {
 
@@ -487,26 +1173,71 @@ public class AbstractGenericDAO {
 				}
 			}
 			List<?> l = q.getResultList();
+			if (IndexAdvisor.isEnabled()) {
+				IndexAdvisor.getInstance().record(persistenceUnitName, entityClass,
+						identifiers.keySet(), System.nanoTime() - start);
+			}
 			// System.out.println("result list size: " + l.size());
 
 			if (l.size() > 1)
 				throw new IllegalArgumentException("Multiple '" + entityName
 						+ "' entities found for search criteria: "
 						+ identifiers + " - " + optionalIdentifierNames);
-			if (l.size() > 0)
-				return (T) l.get(0);
+			T result = l.isEmpty() ? null : (T) l.get(0);
+			if (cache != null) {
+				cache.put(spec, entityClass, result, generation);
+			}
+			return result;
 		}
-		return null;
+	}
+
+	private static String buildIdentifierQuery(String entityName, 
+			Map<String, Object> identifiers, List<String> optionalIdentifierNames) {
+		String tableAlias = "myalias1.";
+		String query = "from " + entityName + " myalias1 where ";
+		int counter = 0;
+		for (Entry<String, Object> e : identifiers.entrySet()) {
+			String key = "identifierField" + counter;
+			Object value = e.getValue();
+			String opt = optionalIdentifierNames.contains(
+					e.getKey()) ? (tableAlias + e.getKey() + " IS NULL or ")
+					: "";
+			if (value instanceof List<?>) {
+				int counter1 = 0;
+				List<?> list = (List<?>) value;
+				if (list.size() > 0) {
+					query += (counter > 0 ? " and " : "") + "(" + opt + "(";
+
+					query += "(size(" + tableAlias + e.getKey() + ")="
+							+ list.size() + ") and ";
+					for (int i = 0; i < list.size(); i++) {
+						String listKey = key + "_" + counter1;
+						query += (counter1 > 0 ? " and " : "") + ":" + listKey
+								+ "=" + tableAlias + e.getKey() + "["
+								+ counter1 + "]";
+						counter1++;
+					}
+
+					query += "))";
+				}
+			} else {
+				query += (counter > 0 ? " and " : "") + "(" + opt + tableAlias
+						+ e.getKey() + "=:" + key + ")";
+			}
+			counter++;
+		}
+		return query;
 	}
 
 	public <T> void clearAll(Class<T> entityClass) {
-		EntityManager em = createEntityManager();
+		EntityManager em = getEntityManager();
 		String entityName = getEntityName(entityClass);
 		String query = "delete from " + entityName;
 		Query q = em.createQuery(query);
 		em.getTransaction().begin();
 		q.executeUpdate();
 		em.getTransaction().commit();
+		invalidateResults(entityClass);
 	}
 
 	@SuppressWarnings("all")
@@ -574,6 +1305,20 @@ public class AbstractGenericDAO {
 		query += "from " + entityName;
 		if (whereClause != null && !whereClause.equals(""))
 			query += " where " + whereClause;
+
+		QueryResultCache cache = resultCache;
+		QuerySpec spec = null;
+		long generation = 0;
+		if (cache != null) {
+			spec = new QuerySpec(query, parameters == null ? null : 
+				new HashMap<String, Object>(parameters), firstResult, maxResults);
+			Object cached = cache.get(spec);
+			if (cached != QueryResultCache.MISS) {
+				return (T) getResult(new ArrayList<Object>((List<?>) cached), forceSingleResult);
+			}
+			generation = cache.getGeneration();
+		}
+
 		Query q = em.createQuery(query);
 		if (parameters != null) {
 			for (String s : parameters.keySet())
@@ -588,6 +1333,9 @@ public class AbstractGenericDAO {
 		List<?> l = null;
 		try {
 			l = q.getResultList();
+			if (cache != null) {
+				cache.put(spec, clazz, new ArrayList<Object>(l), generation);
+			}
 		} catch (Exception e) {
 			// sometimes, hibernate looses the connection to the backend
 			// database and we need to re-try the whole procedure..
@@ -599,17 +1347,16 @@ public class AbstractGenericDAO {
 				throw new RuntimeException(e);
 			}
 		}
+		return (T) getResult(l, forceSingleResult);
+	}
 
+	private static Object getResult(List<?> l, boolean forceSingleResult) {
 		if (l.size() == 1 && forceSingleResult)
-			return (T) l.get(0);
+			return l.get(0);
 		if (l.size() <= 0)
 			return null;
 		if (!forceSingleResult && l.size() > 0) {
-			try {
-				return (T) l;
-			} catch (Exception e) {
-				return (T) l.get(0);
-			}
+			return l;
 		}
 		throw new RuntimeException("DAO, forceSingleResult="
 				+ forceSingleResult + ", expected number of results received: "
@@ -617,11 +1364,12 @@ public class AbstractGenericDAO {
 	}
 
 	public int executeNativeUpdate(String query) {
-		EntityManager em = createEntityManager();
+		EntityManager em = getEntityManager();
 		Query q = em.createNativeQuery(query);
 		em.getTransaction().begin();
 		int result = q.executeUpdate();
 		em.getTransaction().commit();
+		invalidateResults(null);
 		return result;
 	}
 
@@ -630,7 +1378,7 @@ public class AbstractGenericDAO {
 	}
 
 	public int executeUpdate(String query, Map<String, Object> parameters) {
-		EntityManager em = createEntityManager();
+		EntityManager em = getEntityManager();
 		Query q = em.createQuery(query);
 		if (parameters != null) {
 			for (String p : parameters.keySet()) {
@@ -640,13 +1388,30 @@ public class AbstractGenericDAO {
 		em.getTransaction().begin();
 		int result = q.executeUpdate();
 		em.getTransaction().commit();
+		invalidateResults(null);
 		return result;
 	}
 
+	/**
+	 * Returns the entity manager used by this DAO on the current thread 
+	 * (or the one of the current unit of work), which must not be closed 
+	 * by the caller. Note that its persistence context is cleared by 
+	 * subsequent DAO operations, which detaches the managed entities.
+	 * Use {@link #openEntityManager()} to obtain an own entity manager.
+	 */
 	public EntityManager createEntityManager() {
 		return getEntityManager();
 	}
 
+	/**
+	 * Opens a new entity manager, which is owned (and 
+	 * has to be closed) by the caller. Prefer 
+	 * {@link #execute(EntityManagerCallback)} where possible.
+	 */
+	public EntityManager openEntityManager() {
+		return newEntityManager();
+	}
+
 	public void flushDatabase(String databaseName) {
 		EntityManager em = getEntityManager();
 		em.getTransaction().begin();
@@ -657,6 +1422,7 @@ public class AbstractGenericDAO {
 		em.getTransaction().commit();
 		emf = getEntityManagerFactory(persistenceUnitName,
 				connectionProperties, true);
+		invalidateResults(null);
 	}
 
 	public QueryResult executeQuery(String query) {
@@ -687,6 +1453,163 @@ public class AbstractGenericDAO {
 		return result;
 	}
 
+	public <T> Future<List<T>> loadAsync(final Class<T> clazz,
+			final String whereClause, final Map<String, Object> parameters) {
+		return submit(new EntityManagerCallback<List<T>>() {
+			public List<T> execute(EntityManager em) {
+				return loadAsList(clazz, whereClause, parameters);
+			}
+		});
+	}
+
+	public <T> Future<T> loadAsync(final Class<T> entityClass,
+			final Map<String, Object> identifiers,
+			final String... optionalIdentifierNames) {
+		return submit(new EntityManagerCallback<T>() {
+			public T execute(EntityManager em) {
+				return load(entityClass, identifiers, optionalIdentifierNames);
+			}
+		});
+	}
+
+	public <T> Future<T> saveAsync(final T entity) {
+		return submit(new EntityManagerCallback<T>() {
+			public T execute(EntityManager em) {
+				return save(entity);
+			}
+		});
+	}
+
+	public <T> Future<T> saveAsync(final T entity,
+			final Map<String, Object> identifiers,
+			final String... optionalIdentifierNames) {
+		return submit(new EntityManagerCallback<T>() {
+			public T execute(EntityManager em) {
+				return save(entity, identifiers, optionalIdentifierNames);
+			}
+		});
+	}
+
+	public Future<QueryResult> executeQueryAsync(final String query,
+			final Map<String, Object> parameters, final boolean nativeSQL) {
+		return submit(new EntityManagerCallback<QueryResult>() {
+			public QueryResult execute(EntityManager em) {
+				return executeQuery(query, parameters, nativeSQL);
+			}
+		});
+	}
+
+	/**
+	 * Executes the given unit of work on the {@link DatabaseExecutor}. 
+	 * The entity manager is closed afterwards, as the executor 
+	 * threads (and hence their thread-local entity managers) 
+	 * may terminate when idle.
+	 */
+	public <T> Future<T> submit(final EntityManagerCallback<T> callback) {
+		return DatabaseExecutor.submit(new Callable<T>() {
+			public T call() {
+				return AbstractGenericDAO.this.execute(callback);
+			}
+		});
+	}
+
+	public <T> CloseableIterator<T> iterate(Class<T> clazz) {
+		return iterate(clazz, null, null, FETCH_SIZE);
+	}
+
+	/**
+	 * Iterates over the entities of the given class which match the given 
+	 * where clause, using a forward-only cursor with the given fetch size. 
+	 * The entities are read via a dedicated entity manager, and are detached 
+	 * after each fetchSize entities, hence the memory usage does not depend 
+	 * on the result size. Note that some JDBC drivers require special fetch 
+	 * sizes for streaming (e.g., Integer.MIN_VALUE for MySQL).
+	 * The returned iterator has to be closed if it is not fully consumed.
+	 */
+	public <T> CloseableIterator<T> iterate(Class<T> clazz, String whereClause,
+			Map<String, Object> parameters, int fetchSize) {
+		String query = "from " + getEntityName(clazz);
+		if (whereClause != null && !whereClause.equals(""))
+			query += " where " + whereClause;
+		return scroll(query, parameters, false, fetchSize, false);
+	}
+
+	/**
+	 * Iterates over the result tuples of the given query, like 
+	 * {@link #executeQuery(String, Map, boolean)}, but using a forward-only 
+	 * cursor instead of materializing the result 
+	 * (see {@link #iterate(Class, String, Map, int)}).
+	 */
+	public CloseableIterator<List<Object>> iterateQuery(String query,
+			Map<String, Object> parameters, boolean nativeSQL, int fetchSize) {
+		return scroll(query, parameters, nativeSQL, fetchSize, true);
+	}
+
+	/**
+	 * Executes the given query and collects the result into typed columns 
+	 * (see {@link ColumnarQueryResult}), reading the rows via a cursor 
+	 * instead of materializing them as lists of boxed values. If no column 
+	 * names are given, the columns are named c0, c1, ...
+	 */
+	public ColumnarQueryResult executeColumnarQuery(String query,
+			Map<String, Object> parameters, boolean nativeSQL, String... columnNames) {
+		CloseableIterator<List<Object>> rows = iterateQuery(query, parameters, nativeSQL, FETCH_SIZE);
+		try {
+			ColumnarQueryResult result = columnNames.length > 0 ? 
+					new ColumnarQueryResult(Arrays.asList(columnNames)) : null;
+			while (rows.hasNext()) {
+				List<Object> row = rows.next();
+				if (result == null) {
+					List<String> names = new ArrayList<String>();
+					for (int i = 0; i < row.size(); i++) {
+						names.add("c" + i);
+					}
+					result = new ColumnarQueryResult(names);
+				}
+				result.addRow(row);
+			}
+			return result != null ? result : 
+				new ColumnarQueryResult(Collections.<String>emptyList());
+		} finally {
+			rows.close();
+		}
+	}
+
+	private <T> CloseableIterator<T> scroll(String query, Map<String, Object> parameters,
+			boolean nativeSQL, int fetchSize, boolean tuples) {
+		EntityManager em = openEntityManager();
+		try {
+			org.hibernate.Session session = (org.hibernate.Session) em.getDelegate();
+			org.hibernate.Query q = nativeSQL ? session.createSQLQuery(query) : 
+				session.createQuery(query);
+			q.setReadOnly(true);
+			q.setFetchSize(fetchSize);
+			if (parameters != null) {
+				for (String s : parameters.keySet()) {
+					q.setParameter(s, parameters.get(s));
+				}
+			}
+			/* the session's queries bypass the InstrumentedQuery of the entity manager */
+			long start = System.nanoTime();
+			ScrollableResults results;
+			try {
+				results = q.scroll(ScrollMode.FORWARD_ONLY);
+			} catch (RuntimeException e) {
+				if (QueryMetrics.ENABLED) {
+					QueryMetrics metrics = QueryMetrics.getInstance();
+					metrics.recordQuery(metrics.getTemplate(query), query, System.nanoTime() - start, -1);
+				}
+				throw e;
+			}
+			return new ScrollableResultsIterator<T>(em, results, 
+					fetchSize > 0 ? fetchSize : FETCH_SIZE, tuples, 
+					QueryMetrics.ENABLED ? query : null, System.nanoTime() - start);
+		} catch (RuntimeException e) {
+			em.close();
+			throw e;
+		}
+	}
+
 	public Map<String, String> getConnectionPropsCopy() {
 		return new HashMap<String, String>(connectionProperties);
 	}
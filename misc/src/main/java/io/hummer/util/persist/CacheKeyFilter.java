@@ -0,0 +1,219 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.CountingBloomFilter;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory filter of the key hashes stored in the cache table of a
+ * persistence unit, which allows to skip database queries for keys that
+ * are definitely not stored. The filter is built in the background from
+ * the keyHash column (once the {@link CacheKeyMigration} is complete), and
+ * it is not used for lookups before it has been completely built.
+ *
+ * Between builds, the filter only learns about rows written by this JVM. If
+ * several nodes write to the same cache table, rows stored by other nodes are
+ * reported as missing until the next rebuild (see {@link #REBUILD_INTERVAL_MS}).
+ * Hence, the filter is disabled by default, and should only be enabled if this
+ * JVM is the only writer of the cache table. Each rebuild sizes the filter to
+ * (at least) twice the current number of rows.
+ *
+ * Removals are only applied for hashes added by this JVM since the last build,
+ * since removing hashes the filter has never seen would corrupt the counters of
+ * other keys. Other removed rows remain false positives until the next rebuild.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheKeyFilter {
+
+	public static final boolean ENABLED =
+			Configuration.getBoolean(Configuration.PROP_CACHE_FILTER, false);
+	private static final int EXPECTED_KEYS =
+			Configuration.getInteger(Configuration.PROP_CACHE_FILTER_KEYS, 1000000);
+	private static final double FALSE_POSITIVE_RATE =
+			Configuration.getDouble(Configuration.PROP_CACHE_FILTER_FPP, 0.01);
+	/** interval for rebuilding the filter from the database, 0 disables rebuilds */
+	public static final long REBUILD_INTERVAL_MS =
+			Configuration.getLong(Configuration.PROP_CACHE_FILTER_REBUILD, 1000L*60*60);
+	private static final int BATCH_SIZE = 10000;
+
+	private static final Logger logger = LogUtil.getLogger(CacheKeyFilter.class);
+	private static final Map<String,CacheKeyFilter> filters = new HashMap<String,CacheKeyFilter>();
+
+	private final String persistenceUnitName;
+	private volatile CountingBloomFilter filter;
+	/** filter which is currently being built, and receives the additions meanwhile */
+	private volatile CountingBloomFilter building;
+	/** hashes added to the current filter (and to the filter being built) since its build */
+	private volatile Set<Long> added = newHashSet();
+	private volatile Set<Long> addedWhileBuilding;
+	private volatile boolean ready;
+	private volatile long buildTime;
+
+	private CacheKeyFilter(String persistenceUnitName) {
+		this.persistenceUnitName = persistenceUnitName;
+	}
+
+	/**
+	 * Returns the filter for the given persistence unit, or null if the
+	 * filter is disabled or cannot be built yet.
+	 */
+	public static CacheKeyFilter get(String persistenceUnitName) {
+		if(!ENABLED || !CacheKeyMigration.isComplete(persistenceUnitName)) {
+			return null;
+		}
+		synchronized (filters) {
+			CacheKeyFilter f = filters.get(persistenceUnitName);
+			if(f == null) {
+				final CacheKeyFilter filter = new CacheKeyFilter(persistenceUnitName);
+				GlobalThreadPool.execute(new Runnable() {
+					public void run() {
+						if(filter.build() && REBUILD_INTERVAL_MS > 0) {
+							GlobalThreadPool.executePeriodically(new Runnable() {
+								public void run() {
+									/* the first (immediate) execution is skipped */
+									if(System.currentTimeMillis() - filter.buildTime >= REBUILD_INTERVAL_MS) {
+										filter.build();
+									}
+								}
+							}, REBUILD_INTERVAL_MS);
+						}
+					}
+				});
+				filters.put(persistenceUnitName, filter);
+				f = filter;
+			}
+			return f;
+		}
+	}
+
+	/**
+	 * Returns false if the given key is definitely not stored in the
+	 * database, and true if it might be stored (or if the filter is not
+	 * ready yet).
+	 */
+	public boolean mightContain(String key) {
+		return !ready || filter.mightContain(CacheEntry.hashKey(key));
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * To be called after a new row has been stored.
+	 */
+	public void add(long keyHash) {
+		CountingBloomFilter f = filter;
+		if(f != null) {
+			f.add(keyHash);
+			track(added, keyHash);
+		}
+		f = building;
+		if(f != null) {
+			f.add(keyHash);
+			track(addedWhileBuilding, keyHash);
+		}
+	}
+
+	/**
+	 * To be called after a row has been deleted. Only hashes which have been
+	 * added since the last build are removed from the filter, all other 
+	 * removals are ignored (which only results in false positives). A filter 
+	 * being rebuilt ignores removals for the same reason.
+	 */
+	public void remove(long keyHash) {
+		Set<Long> building = addedWhileBuilding;
+		if(building != null) {
+			building.remove(keyHash);
+		}
+		if(ready && added.remove(keyHash)) {
+			filter.remove(keyHash);
+		}
+	}
+
+	private static void track(Set<Long> hashes, long keyHash) {
+		/* untracked hashes are never removed, which only results in false positives */
+		if(hashes != null && hashes.size() < EXPECTED_KEYS) {
+			hashes.add(keyHash);
+		}
+	}
+
+	private static Set<Long> newHashSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+	}
+
+	/**
+	 * (Re-)builds the filter from the keyHash column, and replaces
+	 * the current filter once completed. Returns true on success.
+	 */
+	private boolean build() {
+		long lastID = -1;
+		int count = 0;
+		try {
+			EntityManager em = AbstractGenericDAO.get(persistenceUnitName).openEntityManager();
+			long rows;
+			try {
+				rows = ((Number)em.createQuery("select count(e) from " + CacheEntry.class.getSimpleName() +
+						" e where e.keyHash is not null").getSingleResult()).longValue();
+			} finally {
+				em.close();
+			}
+			CountingBloomFilter f = new CountingBloomFilter(
+					(int)Math.min(Integer.MAX_VALUE / 2, Math.max(EXPECTED_KEYS, rows * 2)), FALSE_POSITIVE_RATE);
+			addedWhileBuilding = newHashSet();
+			building = f;
+			while(true) {
+				em = AbstractGenericDAO.get(persistenceUnitName).openEntityManager();
+				List<?> batch;
+				try {
+					batch = em.createQuery("select e.ID, e.keyHash from " + CacheEntry.class.getSimpleName() +
+							" e where e.ID > :lastID and e.keyHash is not null order by e.ID")
+							.setParameter("lastID", lastID).setMaxResults(BATCH_SIZE).getResultList();
+				} finally {
+					em.close();
+				}
+				for(Object o : batch) {
+					Object[] row = (Object[])o;
+					lastID = (Long)row[0];
+					f.add((Long)row[1]);
+				}
+				count += batch.size();
+				if(batch.size() < BATCH_SIZE) {
+					break;
+				}
+			}
+			added = addedWhileBuilding;
+			filter = f;
+			ready = true;
+			buildTime = System.currentTimeMillis();
+			logger.info("Built cache key filter with " + count + " keys for persistence unit " + persistenceUnitName);
+			return true;
+		} catch (Exception e) {
+			logger.warn("Unable to build cache key filter for persistence unit " + persistenceUnitName, e);
+			if(!ready) {
+				synchronized (filters) {
+					filters.remove(persistenceUnitName);
+				}
+			}
+			return false;
+		} finally {
+			building = null;
+			addedWhileBuilding = null;
+		}
+	}
+
+}
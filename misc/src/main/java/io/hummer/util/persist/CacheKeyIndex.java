@@ -0,0 +1,77 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.str.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Answers pattern queries over an ordered (and possibly concurrently
+ * modified) set of cache keys. Patterns use the syntax of SQL LIKE
+ * ('%' matches any sequence of characters, '_' matches a single character).
+ * The literal prefix of a pattern is used to jump directly to the first
+ * candidate key, and matching keys are produced lazily, in key order.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheKeyIndex {
+
+	private final NavigableSet<String> keys;
+
+	public CacheKeyIndex(NavigableSet<String> keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * Returns the part of the given pattern before the first wildcard.
+	 */
+	public static String getLiteralPrefix(String nameLike) {
+		for(int i = 0; i < nameLike.length(); i ++) {
+			char c = nameLike.charAt(i);
+			if(c == '%' || c == '_') {
+				return nameLike.substring(0, i);
+			}
+		}
+		return nameLike;
+	}
+
+	public Iterator<String> iterator(String nameLike) {
+		final String prefix = getLiteralPrefix(nameLike);
+		/* patterns of the form "<prefix>%" do not require regex matching */
+		final Pattern pattern = nameLike.equals(prefix + "%") ? null :
+				Pattern.compile(new StringUtil().likePatternToRegex(nameLike), Pattern.DOTALL);
+		final Iterator<String> iter = keys.tailSet(prefix, true).iterator();
+		return new AbstractIterator<String>() {
+			protected String computeNext() {
+				while(iter.hasNext()) {
+					String key = iter.next();
+					if(!key.startsWith(prefix)) {
+						break;
+					}
+					if(pattern == null || pattern.matcher(key).matches()) {
+						return key;
+					}
+				}
+				return endOfData();
+			}
+		};
+	}
+
+	public List<String> getKeys(String nameLike, int firstResult, int maxResults) {
+		List<String> result = new ArrayList<String>();
+		Iterator<String> iter = iterator(nameLike);
+		for(int i = 0; i < firstResult && iter.hasNext(); i ++) {
+			iter.next();
+		}
+		while(result.size() < maxResults && iter.hasNext()) {
+			result.add(iter.next());
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,127 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background migration of cache tables created before the introduction
+ * of the keyHash and keyPrefix columns. Rows without a key hash are loaded
+ * in batches and updated (the columns are computed by the entity itself).
+ * Since the key hash is unique, duplicate rows for the same key (which older
+ * versions could create) are reduced to the most recently stored row.
+ *
+ * Until the migration of a persistence unit is complete, cache lookups
+ * need to fall back to comparing the full key strings.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheKeyMigration implements Runnable {
+
+	private static final Logger logger = LogUtil.getLogger(CacheKeyMigration.class);
+	private static final int BATCH_SIZE = 500;
+
+	/** migration state per persistence unit, true if complete */
+	private static final Map<String,Boolean> state = new HashMap<String,Boolean>();
+
+	private final String persistenceUnitName;
+
+	private CacheKeyMigration(String persistenceUnitName) {
+		this.persistenceUnitName = persistenceUnitName;
+	}
+
+	/**
+	 * Returns whether all rows of the given persistence unit have a
+	 * key hash. Starts the migration if it has not been started yet.
+	 */
+	public static boolean isComplete(String persistenceUnitName) {
+		synchronized (state) {
+			Boolean complete = state.get(persistenceUnitName);
+			if(complete == null) {
+				state.put(persistenceUnitName, false);
+				GlobalThreadPool.execute(new CacheKeyMigration(persistenceUnitName));
+				return false;
+			}
+			return complete;
+		}
+	}
+
+	public void run() {
+		int migrated = 0;
+		try {
+			int count;
+			do {
+				count = migrateBatch();
+				migrated += count;
+			} while(count > 0);
+			synchronized (state) {
+				state.put(persistenceUnitName, true);
+			}
+			if(migrated > 0) {
+				logger.info("Added key hashes to " + migrated + " cache entries of persistence unit " + persistenceUnitName);
+			}
+		} catch (Exception e) {
+			logger.warn("Unable to migrate cache entries of persistence unit " +
+					persistenceUnitName + " (" + migrated + " entries migrated)", e);
+			synchronized (state) {
+				state.remove(persistenceUnitName);
+			}
+		}
+	}
+
+	private int migrateBatch() {
+		EntityManager em = AbstractGenericDAO.get(persistenceUnitName).openEntityManager();
+		try {
+			List<?> list = em.createQuery("from " + CacheEntry.class.getSimpleName() +
+					" e where e.keyHash is null").setMaxResults(BATCH_SIZE).getResultList();
+			if(list.isEmpty()) {
+				return 0;
+			}
+			em.getTransaction().begin();
+			Map<Long,CacheEntry> batch = new HashMap<Long,CacheEntry>();
+			for(Object o : list) {
+				CacheEntry e = (CacheEntry)o;
+				if(e.key == null) {
+					em.remove(e);
+					continue;
+				}
+				Long hash = CacheEntry.hashKey(e.key);
+				CacheEntry other = batch.get(hash);
+				if(other == null) {
+					List<?> existing = em.createQuery("from " + CacheEntry.class.getSimpleName() +
+							" e where e.keyHash=:hash").setParameter("hash", hash).getResultList();
+					other = existing.isEmpty() ? null : (CacheEntry)existing.get(0);
+				}
+				/* duplicates (or, in the unlikely case of a hash collision, 
+				 * entries with a different key) are resolved by storeTime */
+				if(other != null && other.storeTime >= e.storeTime) {
+					em.remove(e);
+					continue;
+				}
+				if(other != null) {
+					em.remove(other);
+					/* make sure the row is deleted before the unique hash is re-assigned */
+					em.flush();
+				}
+				e.updateKeyColumns();
+				batch.put(hash, e);
+			}
+			em.getTransaction().commit();
+			return list.size();
+		} finally {
+			if(em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+	}
+
+}
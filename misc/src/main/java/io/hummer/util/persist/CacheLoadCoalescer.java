@@ -0,0 +1,93 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.LimitedSizeHashMap;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes sure that at most one load operation per cache key is in
+ * progress at any time. Threads which request a key that is currently
+ * being loaded wait for (and share) the result of the running load.
+ * Failed loads are remembered for a short period of time, during which
+ * further requests for the same key fail immediately.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheLoadCoalescer {
+
+	/** time (in milliseconds) for which failed loads are remembered */
+	public static final long FAILURE_TTL_MS =
+			Configuration.getLong(Configuration.PROP_CACHE_FAILURE_TTL, 1000L*10);
+	private static final int MAX_FAILURES = 1000;
+
+	private static class Failure {
+		final Exception error;
+		final long time = System.currentTimeMillis();
+		Failure(Exception error) {
+			this.error = error;
+		}
+	}
+
+	private final ConcurrentMap<String,FutureTask<CacheEntry>> inFlight =
+			new ConcurrentHashMap<String,FutureTask<CacheEntry>>();
+	private final Map<String,Failure> failures =
+			new LimitedSizeHashMap<String,Failure>(MAX_FAILURES);
+
+	/**
+	 * Executes the given load operation for the given key, unless another
+	 * load for the same key is in progress, in which case this method
+	 * waits for and returns the result of the running load.
+	 */
+	public CacheEntry load(final String key, final Callable<CacheEntry> loader) throws Exception {
+		synchronized (failures) {
+			Failure f = failures.get(key);
+			if(f != null) {
+				if((System.currentTimeMillis() - f.time) < FAILURE_TTL_MS) {
+					throw f.error;
+				}
+				failures.remove(key);
+			}
+		}
+		FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+			public CacheEntry call() throws Exception {
+				try {
+					return loader.call();
+				} catch (Exception e) {
+					synchronized (failures) {
+						failures.put(key, new Failure(e));
+					}
+					throw e;
+				}
+			}
+		});
+		FutureTask<CacheEntry> running = inFlight.putIfAbsent(key, task);
+		if(running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof Exception) {
+				throw (Exception)cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,303 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.coll.LimitedSizeHashMap;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.perf.Log2Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Metrics of a document cache: hit/miss/load counters, latency histograms
+ * per tier and operation, size gauges and the most frequently hit keys.
+ * The metrics can be accessed via JMX (see {@link #register(String)}),
+ * or as an immutable {@link Snapshot}.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheMetrics implements CacheMetricsMBean {
+
+	/* names of tiers/operations for latency histograms */
+	public static final String LOOKUP_RAM = "lookup.ram";
+	public static final String LOOKUP_QUEUE = "lookup.writeQueue";
+	public static final String LOOKUP_DB = "lookup.db";
+	public static final String LOOKUP_FILE = "lookup.file";
+	public static final String STORE_DB = "store.db";
+	public static final String STORE_FILE = "store.file";
+	public static final String LOAD = "load";
+
+	private static final int MAX_TRACKED_KEYS = 1000;
+	private static final int NUM_TOP_KEYS = 20;
+
+	private static final Logger logger = LogUtil.getLogger(CacheMetrics.class);
+
+	/**
+	 * Provides the current size of a cache.
+	 */
+	public static interface SizeGauge {
+		long getEntryCount();
+		long getWeightBytes();
+	}
+
+	/**
+	 * Immutable snapshot of cache metrics.
+	 */
+	public static class Snapshot {
+		public final long hits;
+		public final long staleHits;
+		public final long misses;
+		public final long loads;
+		public final long loadFailures;
+		public final long refreshes;
+		public final long puts;
+		public final long evictions;
+		public final long filteredLookups;
+		public final long entryCount;
+		public final long weightBytes;
+		public final Map<String,String> latencies;
+		public final String entrySizes;
+		public final List<String> topKeys;
+
+		private Snapshot(CacheMetrics m) {
+			hits = m.getHits();
+			staleHits = m.getStaleHits();
+			misses = m.getMisses();
+			loads = m.getLoads();
+			loadFailures = m.getLoadFailures();
+			refreshes = m.getRefreshes();
+			puts = m.getPuts();
+			evictions = m.getEvictions();
+			filteredLookups = m.getFilteredLookups();
+			entryCount = m.getEntryCount();
+			weightBytes = m.getWeightBytes();
+			SortedMap<String,String> lat = new TreeMap<String,String>();
+			for(Map.Entry<String,Log2Histogram> e : m.latencies.entrySet()) {
+				lat.put(e.getKey(), e.getValue().toString());
+			}
+			latencies = Collections.unmodifiableMap(lat);
+			entrySizes = m.getEntrySizes();
+			topKeys = Collections.unmodifiableList(m.getTopKeyList());
+		}
+
+		public double getHitRatio() {
+			long total = hits + staleHits + misses;
+			return total == 0 ? 0 : (double)(hits + staleHits) / total;
+		}
+
+		@Override
+		public String toString() {
+			return "CacheMetrics[hits=" + hits + ", staleHits=" + staleHits + ", misses=" + misses +
+					", loads=" + loads + ", loadFailures=" + loadFailures + ", refreshes=" + refreshes +
+					", puts=" + puts + ", evictions=" + evictions + ", filteredLookups=" + filteredLookups +
+					", entries=" + entryCount + ", bytes=" + weightBytes + ", latencies(us)=" + latencies + "]";
+		}
+	}
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadFailures = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong puts = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong filteredLookups = new AtomicLong();
+	private final ConcurrentMap<String,Log2Histogram> latencies = new ConcurrentHashMap<String,Log2Histogram>();
+	private final Log2Histogram entrySizes = new Log2Histogram();
+	private final Map<String,AtomicLong> keyHits = new LimitedSizeHashMap<String,AtomicLong>(MAX_TRACKED_KEYS);
+	private volatile SizeGauge sizeGauge;
+
+	public void recordHit(String key) {
+		hits.incrementAndGet();
+		AtomicLong count;
+		synchronized (keyHits) {
+			count = keyHits.get(key);
+			if(count == null) {
+				count = new AtomicLong();
+			}
+			keyHits.put(key, count);
+		}
+		count.incrementAndGet();
+	}
+	public void recordStaleHit() {
+		staleHits.incrementAndGet();
+	}
+	public void recordMiss() {
+		misses.incrementAndGet();
+	}
+	public void recordLoad(long nanos, boolean success) {
+		loads.incrementAndGet();
+		if(!success) {
+			loadFailures.incrementAndGet();
+		}
+		recordLatency(LOAD, nanos);
+	}
+	public void recordRefresh() {
+		refreshes.incrementAndGet();
+	}
+	public void recordPut(int sizeBytes) {
+		puts.incrementAndGet();
+		entrySizes.record(sizeBytes);
+	}
+	public void recordEvictions(int count) {
+		evictions.addAndGet(count);
+	}
+	public void recordFilteredLookup() {
+		filteredLookups.incrementAndGet();
+	}
+	public void recordLatency(String operation, long nanos) {
+		Log2Histogram h = latencies.get(operation);
+		if(h == null) {
+			Log2Histogram newHistogram = new Log2Histogram();
+			h = latencies.putIfAbsent(operation, newHistogram);
+			if(h == null) {
+				h = newHistogram;
+			}
+		}
+		h.record(nanos / 1000);
+	}
+
+	public void setSizeGauge(SizeGauge sizeGauge) {
+		this.sizeGauge = sizeGauge;
+	}
+
+	public Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Registers these metrics at the platform MBean server,
+	 * under the given name.
+	 */
+	public void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("io.hummer.util:type=DocumentCache,name=" + ObjectName.quote(name));
+			if(!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+			}
+		} catch (Exception e) {
+			logger.info("Unable to register cache metrics MBean '" + name + "': " + e);
+		}
+	}
+
+	public void unregister(String name) {
+		try {
+			ObjectName objectName = new ObjectName("io.hummer.util:type=DocumentCache,name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (Exception e) {
+			logger.info("Unable to unregister cache metrics MBean '" + name + "': " + e);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	public double getHitRatio() {
+		long h = hits.get() + staleHits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double)h / total;
+	}
+	public long getLoads() {
+		return loads.get();
+	}
+	public long getLoadFailures() {
+		return loadFailures.get();
+	}
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+	public long getPuts() {
+		return puts.get();
+	}
+	public long getEvictions() {
+		return evictions.get();
+	}
+	public long getFilteredLookups() {
+		return filteredLookups.get();
+	}
+	public long getEntryCount() {
+		SizeGauge g = sizeGauge;
+		return g == null ? -1 : g.getEntryCount();
+	}
+	public long getWeightBytes() {
+		SizeGauge g = sizeGauge;
+		return g == null ? -1 : g.getWeightBytes();
+	}
+	public String[] getLatencies() {
+		List<String> result = new ArrayList<String>();
+		for(Map.Entry<String,Log2Histogram> e : new TreeMap<String,Log2Histogram>(latencies).entrySet()) {
+			result.add(e.getKey() + ": " + e.getValue());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+	public String getEntrySizes() {
+		return entrySizes.toString();
+	}
+	public String[] getTopKeys() {
+		List<String> keys = getTopKeyList();
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	public void reset() {
+		hits.set(0);
+		staleHits.set(0);
+		misses.set(0);
+		loads.set(0);
+		loadFailures.set(0);
+		refreshes.set(0);
+		puts.set(0);
+		evictions.set(0);
+		filteredLookups.set(0);
+		latencies.clear();
+		entrySizes.reset();
+		synchronized (keyHits) {
+			keyHits.clear();
+		}
+	}
+
+	private List<String> getTopKeyList() {
+		final Map<String,Long> counts = new HashMap<String,Long>();
+		synchronized (keyHits) {
+			for(Map.Entry<String,AtomicLong> e : keyHits.entrySet()) {
+				counts.put(e.getKey(), e.getValue().get());
+			}
+		}
+		List<String> keys = new ArrayList<String>(counts.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			public int compare(String o1, String o2) {
+				return counts.get(o2).compareTo(counts.get(o1));
+			}
+		});
+		List<String> result = new ArrayList<String>();
+		for(String key : keys.subList(0, Math.min(NUM_TOP_KEYS, keys.size()))) {
+			result.add(counts.get(key) + " " + key);
+		}
+		return result;
+	}
+
+}
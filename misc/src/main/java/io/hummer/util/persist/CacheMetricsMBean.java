@@ -0,0 +1,32 @@
+package io.hummer.util.persist;
+
+/**
+ * JMX management interface of {@link CacheMetrics}. 
+ * Latencies are given in microseconds, sizes in bytes.
+ *
+ * @author Waldemar Hummer
+ */
+public interface CacheMetricsMBean {
+
+	long getHits();
+	long getStaleHits();
+	long getMisses();
+	double getHitRatio();
+	long getLoads();
+	long getLoadFailures();
+	long getRefreshes();
+	long getPuts();
+	long getEvictions();
+	long getFilteredLookups();
+
+	long getEntryCount();
+	long getWeightBytes();
+
+	/** latency histograms, one line per tier/operation */
+	String[] getLatencies();
+	String getEntrySizes();
+	String[] getTopKeys();
+
+	void reset();
+
+}
@@ -0,0 +1,155 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.LimitedSizeHashMap;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+import io.hummer.util.persist.IDocumentCache.CacheLoader;
+import io.hummer.util.persist.IDocumentCache.DocumentCache;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Implements the get-or-load logic of document caches, with a soft and a
+ * hard time-to-live (TTL) per entry. Entries older than the soft TTL are
+ * still served (stale-while-revalidate), while a refresh is performed in the
+ * background. Only entries older than the hard TTL need to be loaded
+ * synchronously. Frequently accessed ("hot") entries are refreshed ahead
+ * of time, before they reach the soft TTL.
+ *
+ * Loads of the same key are coalesced, see {@link CacheLoadCoalescer}.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheRevalidator {
+
+	/** entries older than the soft TTL are refreshed upon access */
+	public static final long SOFT_TTL_MS = DocumentCache.RENEWAL_INTERVAL;
+	/** entries older than the hard TTL are not served anymore */
+	public static final long HARD_TTL_MS = Math.max(SOFT_TTL_MS,
+			Configuration.getLong(Configuration.PROP_CACHE_HARD_TTL, SOFT_TTL_MS*6));
+	/** hot entries are refreshed once they have reached this fraction of the soft TTL */
+	public static final double REFRESH_AHEAD_RATIO = 0.8;
+	/** number of accesses (per soft TTL period) after which an entry is considered hot */
+	public static final int HOT_ACCESS_COUNT =
+			Configuration.getInteger(Configuration.PROP_CACHE_HOT_ACCESS_COUNT, 10);
+	private static final int MAX_TRACKED_KEYS = 10000;
+
+	private static final Logger logger = LogUtil.getLogger(CacheRevalidator.class);
+
+	/**
+	 * Access to the underlying storage of a cache.
+	 */
+	public static interface Storage {
+		/** returns the entry for the given key, including stale entries */
+		CacheEntry lookup(String key);
+		/** stores the given entry, preferably without waiting */
+		CacheEntry store(CacheEntry entry);
+	}
+
+	private final Storage storage;
+	private final CacheMetrics metrics;
+	private final CacheLoadCoalescer coalescer = new CacheLoadCoalescer();
+	private final ConcurrentMap<String,Boolean> refreshing = new ConcurrentHashMap<String,Boolean>();
+	private final Map<String,AtomicInteger> accessCounts =
+			new LimitedSizeHashMap<String,AtomicInteger>(MAX_TRACKED_KEYS);
+
+	public CacheRevalidator(Storage storage, CacheMetrics metrics) {
+		this.storage = storage;
+		this.metrics = metrics;
+	}
+
+	public static boolean isFresh(CacheEntry e) {
+		return e != null && (System.currentTimeMillis() - e.storeTime) < SOFT_TTL_MS;
+	}
+	public static boolean isUsable(CacheEntry e) {
+		return e != null && (System.currentTimeMillis() - e.storeTime) < HARD_TTL_MS;
+	}
+
+	public CacheEntry get(final String key, final CacheLoader loader) throws Exception {
+		CacheEntry existing = storage.lookup(key);
+		if(isUsable(existing)) {
+			long age = System.currentTimeMillis() - existing.storeTime;
+			int accesses = countAccess(key);
+			if(age >= SOFT_TTL_MS) {
+				metrics.recordStaleHit();
+			} else {
+				metrics.recordHit(key);
+			}
+			if(age >= SOFT_TTL_MS ||
+					(accesses >= HOT_ACCESS_COUNT && age >= SOFT_TTL_MS * REFRESH_AHEAD_RATIO)) {
+				refreshAsync(key, loader);
+			}
+			return existing;
+		}
+		metrics.recordMiss();
+		return coalescer.load(key, new Callable<CacheEntry>() {
+			public CacheEntry call() throws Exception {
+				CacheEntry existing = storage.lookup(key);
+				if(isUsable(existing)) {
+					return existing;
+				}
+				return load(key, loader);
+			}
+		});
+	}
+
+	private void refreshAsync(final String key, final CacheLoader loader) {
+		if(refreshing.putIfAbsent(key, true) != null) {
+			return;
+		}
+		metrics.recordRefresh();
+		GlobalThreadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					coalescer.load(key, new Callable<CacheEntry>() {
+						public CacheEntry call() throws Exception {
+							return load(key, loader);
+						}
+					});
+				} catch (Exception e) {
+					logger.info("Unable to refresh cache entry for key '" + key + "': " + e);
+				} finally {
+					refreshing.remove(key);
+				}
+			}
+		});
+	}
+
+	private CacheEntry load(String key, CacheLoader loader) throws Exception {
+		long start = System.nanoTime();
+		CacheEntry loaded;
+		try {
+			loaded = loader.load(key);
+		} catch (Exception e) {
+			metrics.recordLoad(System.nanoTime() - start, false);
+			throw e;
+		}
+		metrics.recordLoad(System.nanoTime() - start, true);
+		synchronized (accessCounts) {
+			accessCounts.remove(key);
+		}
+		return loaded == null ? null : storage.store(loaded);
+	}
+
+	private int countAccess(String key) {
+		AtomicInteger count;
+		synchronized (accessCounts) {
+			count = accessCounts.get(key);
+			if(count == null) {
+				count = new AtomicInteger();
+			}
+			/* re-insert, to keep frequently accessed keys in the map */
+			accessCounts.put(key, count);
+		}
+		return count.incrementAndGet();
+	}
+
+}
@@ -0,0 +1,304 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.LimitedSizeHashMap;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically (and on shutdown) writes the most frequently accessed keys
+ * of the in-memory cache tier, optionally including their values, to a
+ * local file. On startup, the snapshot is used to re-populate the in-memory
+ * tier, starting with the most frequently accessed keys. Keys stored without
+ * values are re-loaded from the underlying cache storage, using a few
+ * parallel threads, until the warm-up time budget is exhausted.
+ *
+ * File format: magic (int), number of entries (int), and for each entry:
+ * key length (int), key (UTF-8), access count (int), storeTime (long),
+ * firstStoreTime (long), value codec (byte, -1 if no value is included),
+ * value length (int) and encoded value.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheSnapshot {
+
+	private static final int MAGIC = 0x44435331;
+	private static final int NO_VALUE = -1;
+	private static final int WARMUP_THREADS = 4;
+	private static final int MAX_TRACKED_KEYS = 100000;
+
+	private static final Logger logger = LogUtil.getLogger(CacheSnapshot.class);
+
+	/**
+	 * Source of the entries to be written, and target of warmed up entries.
+	 */
+	public static interface CacheTier {
+		/** returns the in-memory entry, or null */
+		CacheEntry getInMemory(String key);
+		/** loads an entry from the underlying storage, or returns null */
+		CacheEntry load(String key);
+		/** stores the restored entry, unless the key has been stored meanwhile with a newer entry */
+		void putInMemory(CacheEntry entry);
+	}
+
+	private static class Item {
+		final String key;
+		final int accessCount;
+		final CacheEntry entry;
+		Item(String key, int accessCount, CacheEntry entry) {
+			this.key = key;
+			this.accessCount = accessCount;
+			this.entry = entry;
+		}
+	}
+
+	private final File file;
+	private final boolean includeValues;
+	private final int maxKeys;
+	private final CacheTier tier;
+	private final Map<String,AtomicInteger> accessCounts =
+			new LimitedSizeHashMap<String,AtomicInteger>(MAX_TRACKED_KEYS);
+	/** the snapshot file must not be overwritten before it has been restored */
+	private volatile boolean restored;
+
+	public CacheSnapshot(File file, boolean includeValues, int maxKeys, CacheTier tier) {
+		this.file = file;
+		this.includeValues = includeValues;
+		this.maxKeys = maxKeys;
+		this.tier = tier;
+	}
+
+	/**
+	 * Creates the snapshot configured via the cache.snapshot.* properties,
+	 * or returns null if no snapshot file is configured.
+	 */
+	public static CacheSnapshot createFromConfig(CacheTier tier) {
+		String fileName = Configuration.getString(Configuration.PROP_CACHE_SNAPSHOT_FILE);
+		if(fileName == null || fileName.trim().isEmpty()) {
+			return null;
+		}
+		final CacheSnapshot snapshot = new CacheSnapshot(new File(fileName.trim()),
+				Configuration.getBoolean(Configuration.PROP_CACHE_SNAPSHOT_VALUES, true),
+				Configuration.getInteger(Configuration.PROP_CACHE_SNAPSHOT_KEYS, 10000), tier);
+		final long warmupMS = Configuration.getLong(Configuration.PROP_CACHE_SNAPSHOT_WARMUP, 1000L*30);
+		final long intervalMS = Configuration.getLong(Configuration.PROP_CACHE_SNAPSHOT_INTERVAL, 1000L*60*5);
+		GlobalThreadPool.execute(new Runnable() {
+			public void run() {
+				snapshot.restore(warmupMS);
+			}
+		});
+		GlobalThreadPool.executePeriodically(new Runnable() {
+			public void run() {
+				GlobalThreadPool.execute(new Runnable() {
+					public void run() {
+						snapshot.writeQuietly();
+					}
+				});
+			}
+		}, intervalMS);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				snapshot.writeQuietly();
+			}
+		});
+		return snapshot;
+	}
+
+	public void recordAccess(String key) {
+		AtomicInteger count;
+		synchronized (accessCounts) {
+			count = accessCounts.get(key);
+			if(count == null) {
+				count = new AtomicInteger();
+			}
+			/* re-insert, to keep frequently accessed keys in the map */
+			accessCounts.put(key, count);
+		}
+		count.incrementAndGet();
+	}
+
+	public synchronized void write() throws IOException {
+		List<Item> items = new ArrayList<Item>();
+		synchronized (accessCounts) {
+			for(Map.Entry<String,AtomicInteger> e : accessCounts.entrySet()) {
+				items.add(new Item(e.getKey(), e.getValue().get(), null));
+			}
+		}
+		sortByAccessCount(items);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		int count = 0;
+		try {
+			List<Item> written = new ArrayList<Item>();
+			for(Item item : items) {
+				if(written.size() >= maxKeys) {
+					break;
+				}
+				CacheEntry e = tier.getInMemory(item.key);
+				if(e != null && e.valueData != null) {
+					written.add(new Item(item.key, item.accessCount, e));
+				}
+			}
+			out.writeInt(MAGIC);
+			out.writeInt(written.size());
+			for(Item item : written) {
+				byte[] key = StringUtils.getBytesUtf8(item.key);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeInt(item.accessCount);
+				out.writeLong(item.entry.storeTime);
+				out.writeLong(item.entry.firstStoreTime);
+				if(includeValues) {
+					out.writeByte(item.entry.valueCodec == null ?
+							CacheValueCodec.CODEC_RAW : item.entry.valueCodec);
+					out.writeInt(item.entry.valueData.length);
+					out.write(item.entry.valueData);
+				} else {
+					out.writeByte(NO_VALUE);
+				}
+			}
+			count = written.size();
+		} finally {
+			out.close();
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace cache snapshot " + file);
+		}
+		if(!tmp.renameTo(file)) {
+			throw new IOException("Unable to write cache snapshot " + file);
+		}
+		if(logger.isDebugEnabled()) logger.debug("Wrote " + count + " keys to cache snapshot " + file);
+	}
+
+	/**
+	 * Restores the in-memory tier from the snapshot file,
+	 * within the given time budget.
+	 */
+	public void restore(long warmupMS) {
+		final long deadline = System.currentTimeMillis() + warmupMS;
+		List<Item> items;
+		try {
+			items = read();
+		} catch (IOException e) {
+			logger.warn("Unable to read cache snapshot " + file, e);
+			restored = true;
+			return;
+		}
+		sortByAccessCount(items);
+		final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+		final AtomicInteger count = new AtomicInteger();
+		for(Item item : items) {
+			synchronized (accessCounts) {
+				accessCounts.put(item.key, new AtomicInteger(item.accessCount));
+			}
+			if(item.entry.valueData != null) {
+				if(CacheRevalidator.isUsable(item.entry)) {
+					tier.putInMemory(item.entry);
+					count.incrementAndGet();
+				}
+			} else {
+				queue.add(item);
+			}
+		}
+		final AtomicInteger workers = new AtomicInteger(Math.min(WARMUP_THREADS, queue.size()));
+		for(int i = workers.get(); i > 0; i --) {
+			GlobalThreadPool.execute(new Runnable() {
+				public void run() {
+					Item item;
+					while(System.currentTimeMillis() < deadline && (item = queue.poll()) != null) {
+						try {
+							CacheEntry e = tier.load(item.key);
+							if(e != null) {
+								tier.putInMemory(e);
+								count.incrementAndGet();
+							}
+						} catch (Exception e) {
+							logger.info("Unable to warm up cache entry '" + item.key + "': " + e);
+						}
+					}
+					if(workers.decrementAndGet() == 0) {
+						restored = true;
+						logger.info("Warmed up " + count.get() + " cache entries from snapshot " + file);
+					}
+				}
+			});
+		}
+		if(workers.get() == 0) {
+			restored = true;
+			logger.info("Warmed up " + count.get() + " cache entries from snapshot " + file);
+		}
+	}
+
+	private List<Item> read() throws IOException {
+		List<Item> items = new ArrayList<Item>();
+		if(!file.exists()) {
+			return items;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Invalid cache snapshot file: " + file);
+			}
+			int count = in.readInt();
+			for(int i = 0; i < count; i ++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				CacheEntry e = new CacheEntry();
+				e.key = StringUtils.newStringUtf8(key);
+				int accessCount = in.readInt();
+				e.storeTime = in.readLong();
+				e.firstStoreTime = in.readLong();
+				byte codec = in.readByte();
+				if(codec != NO_VALUE) {
+					e.valueCodec = codec;
+					e.valueData = new byte[in.readInt()];
+					in.readFully(e.valueData);
+				}
+				items.add(new Item(e.key, accessCount, e));
+			}
+		} finally {
+			in.close();
+		}
+		return items;
+	}
+
+	private void writeQuietly() {
+		if(!restored) {
+			return;
+		}
+		try {
+			write();
+		} catch (Exception e) {
+			logger.warn("Unable to write cache snapshot " + file, e);
+		}
+	}
+
+	private static void sortByAccessCount(List<Item> items) {
+		Collections.sort(items, new Comparator<Item>() {
+			public int compare(Item o1, Item o2) {
+				return o2.accessCount - o1.accessCount;
+			}
+		});
+	}
+
+}
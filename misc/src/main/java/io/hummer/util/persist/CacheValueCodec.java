@@ -0,0 +1,125 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.StringUtils;
+
+/**
+ * Encodes cache values as (optionally compressed) byte arrays. Text values 
+ * are encoded as UTF-8, binary values are stored as they are. Values smaller 
+ * than the configured threshold, or values which do not get any smaller 
+ * when compressed, are stored uncompressed.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheValueCodec {
+
+	public static final byte CODEC_RAW = 0;
+	public static final byte CODEC_DEFLATE = 1;
+	/** flag which indicates that the value is a binary (non-text) payload */
+	public static final byte CODEC_BINARY = 2;
+
+	/** values below this size (in bytes) are not compressed */
+	public static final int COMPRESSION_THRESHOLD =
+			Configuration.getInteger(Configuration.PROP_CACHE_COMPRESS_THRESHOLD, 512);
+
+	private static final int BUFFER_SIZE = 1024*8;
+
+	/**
+	 * Encodes the given value and returns the encoded bytes.
+	 * The codec which has been applied is stored in codecOut[0].
+	 */
+	public static byte[] encode(String value, byte[] codecOut) {
+		return encode(StringUtils.getBytesUtf8(value), CODEC_RAW, codecOut);
+	}
+
+	/**
+	 * Encodes the given binary value and returns the encoded bytes.
+	 * The codec which has been applied is stored in codecOut[0].
+	 */
+	public static byte[] encodeBinary(byte[] value, byte[] codecOut) {
+		return encode(value, CODEC_BINARY, codecOut);
+	}
+
+	public static String decode(byte[] data, byte codec) {
+		if((codec & CODEC_BINARY) != 0) {
+			throw new IllegalArgumentException("Cannot decode binary cache value as text.");
+		}
+		byte[] bytes = decodeBytes(data, codec);
+		return bytes == null ? null : StringUtils.newStringUtf8(bytes);
+	}
+
+	public static byte[] decodeBytes(byte[] data, byte codec) {
+		if(data == null) {
+			return null;
+		}
+		if((codec & ~(CODEC_DEFLATE | CODEC_BINARY)) != 0) {
+			throw new IllegalArgumentException("Unknown cache value codec: " + codec);
+		}
+		if((codec & CODEC_DEFLATE) != 0) {
+			return inflate(data);
+		}
+		return data;
+	}
+
+	public static boolean isBinary(byte codec) {
+		return (codec & CODEC_BINARY) != 0;
+	}
+
+	private static byte[] encode(byte[] raw, byte flags, byte[] codecOut) {
+		codecOut[0] = flags;
+		if(raw.length < COMPRESSION_THRESHOLD) {
+			return raw;
+		}
+		byte[] deflated = deflate(raw);
+		if(deflated.length >= raw.length) {
+			return raw;
+		}
+		codecOut[0] = (byte)(flags | CODEC_DEFLATE);
+		return deflated;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				bos.write(buffer, 0, count);
+			}
+			return bos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("Truncated compressed cache value.");
+				}
+				bos.write(buffer, 0, count);
+			}
+			return bos.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed cache value.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
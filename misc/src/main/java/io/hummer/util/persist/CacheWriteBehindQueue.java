@@ -0,0 +1,155 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-behind queue for the database tier of the document cache. Entries
+ * are coalesced by key (the last write wins) and written to the database
+ * in batches, either as soon as the number of pending entries reaches the
+ * batch size, or periodically after the flush interval. All pending entries
+ * are flushed when the JVM shuts down.
+ *
+ * @author Waldemar Hummer
+ */
+public class CacheWriteBehindQueue {
+
+	private static final Logger logger = LogUtil.getLogger(CacheWriteBehindQueue.class);
+
+	public static interface BatchWriter {
+		void write(List<CacheEntry> entries) throws Exception;
+	}
+
+	/** entries waiting to be written, in order of their last update */
+	private final LinkedHashMap<String,CacheEntry> pending = new LinkedHashMap<String,CacheEntry>();
+	/** entries which are currently being written by a flush */
+	private final Map<String,CacheEntry> flushing = new HashMap<String,CacheEntry>();
+	private final Object flushLock = new Object();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final BatchWriter writer;
+	private final int batchSize;
+
+	public CacheWriteBehindQueue(BatchWriter writer, int batchSize, long flushIntervalMS) {
+		this.writer = writer;
+		this.batchSize = batchSize > 0 ? batchSize : 1;
+		GlobalThreadPool.executePeriodically(new Runnable() {
+			public void run() {
+				triggerFlush();
+			}
+		}, flushIntervalMS);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	public void add(CacheEntry e) {
+		boolean full;
+		synchronized (pending) {
+			/* remove first, so that re-written keys move to the end of the queue */
+			pending.remove(e.key);
+			pending.put(e.key, e);
+			full = pending.size() >= batchSize;
+		}
+		if(full) {
+			triggerFlush();
+		}
+	}
+
+	/**
+	 * Returns the entry which is waiting to be written for the given key,
+	 * or null if no write is pending for this key.
+	 */
+	public CacheEntry get(String key) {
+		synchronized (pending) {
+			CacheEntry e = pending.get(key);
+			if(e == null) {
+				e = flushing.get(key);
+			}
+			return e;
+		}
+	}
+
+	/**
+	 * Discards the pending write for the given key. A write which
+	 * is currently being flushed is not affected.
+	 */
+	public void remove(String key) {
+		synchronized (pending) {
+			pending.remove(key);
+		}
+	}
+
+	public int size() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Writes all pending entries to the database, in batches of (at most)
+	 * batchSize entries. Blocks until all entries have been written.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<CacheEntry> batch;
+			while(!(batch = takeBatch()).isEmpty()) {
+				try {
+					writer.write(batch);
+				} catch (Exception e) {
+					logger.warn("Unable to write " + batch.size() + " cache entries to DB.", e);
+				} finally {
+					synchronized (pending) {
+						for(CacheEntry e : batch) {
+							if(flushing.get(e.key) == e) {
+								flushing.remove(e.key);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void triggerFlush() {
+		if(!flushScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		GlobalThreadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} finally {
+					flushScheduled.set(false);
+				}
+			}
+		});
+	}
+
+	private List<CacheEntry> takeBatch() {
+		List<CacheEntry> batch = new ArrayList<CacheEntry>();
+		synchronized (pending) {
+			Iterator<CacheEntry> iter = pending.values().iterator();
+			while(iter.hasNext() && batch.size() < batchSize) {
+				CacheEntry e = iter.next();
+				iter.remove();
+				flushing.put(e.key, e);
+				batch.add(e);
+			}
+		}
+		return batch;
+	}
+
+}
@@ -0,0 +1,504 @@
+package io.hummer.util.persist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
+
+/**
+ * Query result which stores its values column by column, in primitive
+ * arrays (int, long, double) or dictionary-encoded strings, with a null
+ * bitmap per column. The type of each column is derived from its values:
+ * integer columns are widened to long and double if required, and columns
+ * with mixed value types fall back to (boxed) objects. BigDecimal and
+ * BigInteger values are stored as objects, to retain their precision.
+ *
+ * Rows can be traversed without allocating objects via a {@link Cursor},
+ * and exported as CSV or in a compact binary format (see
+ * {@link #writeBinary(DataOutputStream)} and {@link #readBinary(DataInputStream)}).
+ *
+ * @author Waldemar Hummer
+ */
+public class ColumnarQueryResult {
+
+	public static enum ColumnType {
+		INT, LONG, DOUBLE, STRING, OBJECT
+	}
+
+	private static final int BINARY_FORMAT_MAGIC = 0x434F4C32;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final List<String> columnNames;
+	private final Column[] columns;
+	private int rowCount;
+
+	/**
+	 * Column of values, stored in the array matching its type.
+	 */
+	private static class Column {
+		ColumnType type;
+		int capacity = INITIAL_CAPACITY;
+		int size;
+		final BitSet nulls = new BitSet();
+		int[] ints;
+		long[] longs;
+		double[] doubles;
+		Object[] objects;
+		/* dictionary of string columns, ints holds the codes */
+		List<String> dictionary;
+		Map<String, Integer> dictionaryIndex;
+
+		void add(Object value) {
+			if (size >= capacity) {
+				grow();
+			}
+			if (value == null) {
+				nulls.set(size++);
+				return;
+			}
+			if (type == null) {
+				init(typeOf(value));
+			} else if (!fits(value)) {
+				convert(widen(type, typeOf(value)));
+			}
+			set(size++, value);
+		}
+
+		private void init(ColumnType t) {
+			type = t;
+			switch (t) {
+			case INT: ints = new int[capacity]; break;
+			case LONG: longs = new long[capacity]; break;
+			case DOUBLE: doubles = new double[capacity]; break;
+			case STRING:
+				ints = new int[capacity];
+				dictionary = new ArrayList<String>();
+				dictionaryIndex = new HashMap<String, Integer>();
+				break;
+			default: objects = new Object[capacity]; break;
+			}
+		}
+
+		private boolean fits(Object value) {
+			ColumnType t = typeOf(value);
+			return t == type || type == ColumnType.OBJECT ||
+					(type == ColumnType.LONG && t == ColumnType.INT) ||
+					(type == ColumnType.DOUBLE && (t == ColumnType.INT || t == ColumnType.LONG));
+		}
+
+		private void convert(ColumnType newType) {
+			Object[] values = new Object[size];
+			for (int i = 0; i < size; i++) {
+				values[i] = getObject(i);
+			}
+			ints = null;
+			longs = null;
+			doubles = null;
+			objects = null;
+			dictionary = null;
+			dictionaryIndex = null;
+			init(newType);
+			for (int i = 0; i < size; i++) {
+				if (values[i] != null) {
+					set(i, values[i]);
+				}
+			}
+		}
+
+		private void set(int i, Object value) {
+			switch (type) {
+			case INT: ints[i] = ((Number) value).intValue(); break;
+			case LONG: longs[i] = ((Number) value).longValue(); break;
+			case DOUBLE: doubles[i] = ((Number) value).doubleValue(); break;
+			case STRING:
+				Integer code = dictionaryIndex.get(value);
+				if (code == null) {
+					code = dictionary.size();
+					dictionary.add((String) value);
+					dictionaryIndex.put((String) value, code);
+				}
+				ints[i] = code;
+				break;
+			default: objects[i] = value; break;
+			}
+		}
+
+		private void grow() {
+			capacity *= 2;
+			if (ints != null) ints = Arrays.copyOf(ints, capacity);
+			if (longs != null) longs = Arrays.copyOf(longs, capacity);
+			if (doubles != null) doubles = Arrays.copyOf(doubles, capacity);
+			if (objects != null) objects = Arrays.copyOf(objects, capacity);
+		}
+
+		boolean isNull(int row) {
+			return nulls.get(row);
+		}
+
+		double getDouble(int row) {
+			if (type == null) {
+				return 0;
+			}
+			switch (type) {
+			case INT: return ints[row];
+			case LONG: return longs[row];
+			case DOUBLE: return doubles[row];
+			case STRING: return Double.parseDouble(dictionary.get(ints[row]));
+			default: return objects[row] instanceof Number ?
+					((Number) objects[row]).doubleValue() :
+					Double.parseDouble(String.valueOf(objects[row]));
+			}
+		}
+
+		long getLong(int row) {
+			if (type == null) {
+				return 0;
+			}
+			switch (type) {
+			case INT: return ints[row];
+			case LONG: return longs[row];
+			case DOUBLE: return (long) doubles[row];
+			case STRING: return Long.parseLong(dictionary.get(ints[row]));
+			default: return objects[row] instanceof Number ?
+					((Number) objects[row]).longValue() :
+					Long.parseLong(String.valueOf(objects[row]));
+			}
+		}
+
+		Object getObject(int row) {
+			if (type == null || nulls.get(row)) {
+				return null;
+			}
+			switch (type) {
+			case INT: return ints[row];
+			case LONG: return longs[row];
+			case DOUBLE: return doubles[row];
+			case STRING: return dictionary.get(ints[row]);
+			default: return objects[row];
+			}
+		}
+	}
+
+	/**
+	 * Cursor over the rows of a result, which reads the
+	 * values directly from the column arrays.
+	 */
+	public class Cursor {
+		private int row = -1;
+
+		public boolean next() {
+			return ++row < rowCount;
+		}
+		public int getRow() {
+			return row;
+		}
+		public boolean isNull(int column) {
+			return ColumnarQueryResult.this.isNull(row, column);
+		}
+		public int getInt(int column) {
+			return (int) columns[column].getLong(row);
+		}
+		public long getLong(int column) {
+			return columns[column].getLong(row);
+		}
+		public double getDouble(int column) {
+			return columns[column].getDouble(row);
+		}
+		public String getString(int column) {
+			return ColumnarQueryResult.this.getString(row, column);
+		}
+		public Object getObject(int column) {
+			return columns[column].getObject(row);
+		}
+	}
+
+	public ColumnarQueryResult(List<String> columnNames) {
+		this.columnNames = new ArrayList<String>(columnNames);
+		this.columns = new Column[columnNames.size()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = new Column();
+		}
+	}
+
+	public void addRow(List<?> values) {
+		if (values.size() != columns.length) {
+			throw new IllegalArgumentException("Expected " + columns.length +
+					" values, got " + values.size());
+		}
+		for (int i = 0; i < columns.length; i++) {
+			columns[i].add(values.get(i));
+		}
+		rowCount++;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+	public int getColumnCount() {
+		return columns.length;
+	}
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(columnNames);
+	}
+	public int getColumnIndex(String name) {
+		int index = columnNames.indexOf(name);
+		if (index < 0) {
+			throw new IllegalArgumentException("Unknown column: " + name);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the type of the given column, or null if it only contains nulls.
+	 */
+	public ColumnType getColumnType(int column) {
+		return columns[column].type;
+	}
+
+	/**
+	 * Whether the given column is stored as int, long or double values.
+	 */
+	public boolean isNumeric(int column) {
+		ColumnType t = columns[column].type;
+		return t == ColumnType.INT || t == ColumnType.LONG || t == ColumnType.DOUBLE;
+	}
+
+	public boolean isNull(int row, int column) {
+		return columns[column].isNull(row);
+	}
+	public int getInt(int row, int column) {
+		return (int) columns[column].getLong(row);
+	}
+	public long getLong(int row, int column) {
+		return columns[column].getLong(row);
+	}
+	public double getDouble(int row, int column) {
+		return columns[column].getDouble(row);
+	}
+	public String getString(int row, int column) {
+		Object o = columns[column].getObject(row);
+		return o == null ? null : o.toString();
+	}
+	public Object getObject(int row, int column) {
+		return columns[column].getObject(row);
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Returns the non-null values of the given column as doubles, e.g.,
+	 * for use with {@link io.hummer.util.math.MathUtil}.
+	 */
+	public double[] getDoubles(int column) {
+		Column c = columns[column];
+		double[] result = new double[rowCount - c.nulls.cardinality()];
+		int count = 0;
+		for (int i = 0; i < rowCount; i++) {
+			if (!c.isNull(i)) {
+				result[count++] = c.getDouble(i);
+			}
+		}
+		return result;
+	}
+
+	public DescriptiveStatistics getStatistics(int column) {
+		DescriptiveStatistics stats = new DescriptiveStatistics();
+		for (double d : getDoubles(column)) {
+			stats.addValue(d);
+		}
+		return stats;
+	}
+
+	/**
+	 * Writes this result as CSV, with a header line of column names.
+	 * Null values are written as empty fields.
+	 */
+	public void writeCSV(Writer out) throws IOException {
+		for (int c = 0; c < columns.length; c++) {
+			out.write((c > 0 ? "," : "") + escapeCSV(columnNames.get(c)));
+		}
+		out.write("\n");
+		for (int r = 0; r < rowCount; r++) {
+			for (int c = 0; c < columns.length; c++) {
+				if (c > 0) {
+					out.write(",");
+				}
+				Object o = columns[c].getObject(r);
+				if (o != null) {
+					out.write(columns[c].type == ColumnType.STRING ||
+							columns[c].type == ColumnType.OBJECT ?
+							escapeCSV(o.toString()) : o.toString());
+				}
+			}
+			out.write("\n");
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes this result in a binary format, column by column. Strings are 
+	 * written as length-prefixed UTF-8 bytes. Values of object columns are 
+	 * written as strings, and read back as string columns.
+	 */
+	public void writeBinary(DataOutputStream out) throws IOException {
+		out.writeInt(BINARY_FORMAT_MAGIC);
+		out.writeInt(columns.length);
+		out.writeInt(rowCount);
+		for (int c = 0; c < columns.length; c++) {
+			Column col = columns[c];
+			writeString(out, columnNames.get(c));
+			out.writeByte(col.type == null ? -1 : col.type.ordinal());
+			for (int r = 0; r < rowCount; r += 8) {
+				int b = 0;
+				for (int i = 0; i < 8; i++) {
+					if (col.nulls.get(r + i)) {
+						b |= 1 << i;
+					}
+				}
+				out.writeByte(b);
+			}
+			if (col.type == null) {
+				continue;
+			}
+			switch (col.type) {
+			case INT:
+				for (int r = 0; r < rowCount; r++) out.writeInt(col.ints[r]);
+				break;
+			case LONG:
+				for (int r = 0; r < rowCount; r++) out.writeLong(col.longs[r]);
+				break;
+			case DOUBLE:
+				for (int r = 0; r < rowCount; r++) out.writeDouble(col.doubles[r]);
+				break;
+			case STRING:
+				out.writeInt(col.dictionary.size());
+				for (String s : col.dictionary) writeString(out, s);
+				for (int r = 0; r < rowCount; r++) out.writeInt(col.ints[r]);
+				break;
+			default:
+				for (int r = 0; r < rowCount; r++) writeString(out, String.valueOf(col.objects[r]));
+				break;
+			}
+		}
+		out.flush();
+	}
+
+	public static ColumnarQueryResult readBinary(DataInputStream in) throws IOException {
+		if (in.readInt() != BINARY_FORMAT_MAGIC) {
+			throw new IOException("Invalid columnar result format.");
+		}
+		int numColumns = in.readInt();
+		int numRows = in.readInt();
+		List<String> names = new ArrayList<String>();
+		Column[] cols = new Column[numColumns];
+		for (int c = 0; c < numColumns; c++) {
+			names.add(readString(in));
+			byte type = in.readByte();
+			Column col = cols[c] = new Column();
+			col.capacity = Math.max(numRows, 1);
+			col.size = numRows;
+			for (int r = 0; r < numRows; r += 8) {
+				int b = in.readUnsignedByte();
+				for (int i = 0; i < 8 && r + i < numRows; i++) {
+					if ((b & (1 << i)) != 0) {
+						col.nulls.set(r + i);
+					}
+				}
+			}
+			if (type < 0) {
+				continue;
+			}
+			ColumnType t = ColumnType.values()[type];
+			col.init(t == ColumnType.OBJECT ? ColumnType.STRING : t);
+			switch (t) {
+			case INT:
+				for (int r = 0; r < numRows; r++) col.ints[r] = in.readInt();
+				break;
+			case LONG:
+				for (int r = 0; r < numRows; r++) col.longs[r] = in.readLong();
+				break;
+			case DOUBLE:
+				for (int r = 0; r < numRows; r++) col.doubles[r] = in.readDouble();
+				break;
+			case STRING:
+				int dictSize = in.readInt();
+				for (int i = 0; i < dictSize; i++) {
+					String s = readString(in);
+					col.dictionaryIndex.put(s, col.dictionary.size());
+					col.dictionary.add(s);
+				}
+				for (int r = 0; r < numRows; r++) col.ints[r] = in.readInt();
+				break;
+			default:
+				for (int r = 0; r < numRows; r++) {
+					String s = readString(in);
+					if (!col.isNull(r)) {
+						col.set(r, s);
+					}
+				}
+				break;
+			}
+		}
+		ColumnarQueryResult result = new ColumnarQueryResult(names);
+		System.arraycopy(cols, 0, result.columns, 0, numColumns);
+		result.rowCount = numRows;
+		return result;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static ColumnType typeOf(Object value) {
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ColumnType.INT;
+		}
+		if (value instanceof Long) {
+			return ColumnType.LONG;
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return ColumnType.DOUBLE;
+		}
+		if (value instanceof String) {
+			return ColumnType.STRING;
+		}
+		return ColumnType.OBJECT;
+	}
+
+	private static ColumnType widen(ColumnType t1, ColumnType t2) {
+		boolean numeric1 = t1 == ColumnType.INT || t1 == ColumnType.LONG || t1 == ColumnType.DOUBLE;
+		boolean numeric2 = t2 == ColumnType.INT || t2 == ColumnType.LONG || t2 == ColumnType.DOUBLE;
+		if (numeric1 && numeric2) {
+			return t1.ordinal() > t2.ordinal() ? t1 : t2;
+		}
+		return ColumnType.OBJECT;
+	}
+
+	private static String escapeCSV(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 &&
+				s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+			return s;
+		}
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+}
@@ -0,0 +1,176 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.log.LogUtil;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Configures pooled JDBC connections (c3p0, via Hibernate's C3P0ConnectionProvider)
+ * for the persistence units of {@link AbstractGenericDAO}. Pool settings can
+ * be given as connection properties (see {@link AbstractGenericDAO#setConnectionProperty(String, String, String)})
+ * with the short names below (e.g., "pool.maxSize"), or directly as
+ * "hibernate.c3p0.*" properties; defaults are taken from the configuration,
+ * but only for properties which the persistence unit does not define in its
+ * persistence.xml. Pooling is disabled unless enabled via {@link #PROP_ENABLED}
+ * or {@link Configuration#PROP_DB_POOL_ENABLED}, and is not applied to units
+ * which use a data source or their own connection provider.
+ *
+ * Validation of connections is either done when a connection is borrowed
+ * from the pool ({@link #VALIDATION_CHECKOUT}), periodically for idle
+ * connections ({@link #VALIDATION_IDLE}), or not at all.
+ *
+ * @author Waldemar Hummer
+ */
+public class ConnectionPool {
+
+	public static final String PROP_ENABLED = "pool.enabled";
+	public static final String PROP_MIN_SIZE = "pool.minSize";
+	public static final String PROP_MAX_SIZE = "pool.maxSize";
+	public static final String PROP_IDLE_TIMEOUT = "pool.idleTimeoutSec";
+	public static final String PROP_MAX_STATEMENTS = "pool.maxStatements";
+	public static final String PROP_VALIDATION = "pool.validation";
+	public static final String PROP_TEST_QUERY = "pool.testQuery";
+	public static final String PROP_IDLE_TEST_PERIOD = "pool.idleTestPeriodSec";
+
+	public static final String VALIDATION_CHECKOUT = "checkout";
+	public static final String VALIDATION_IDLE = "idle";
+	public static final String VALIDATION_NONE = "none";
+
+	private static final String C3P0_PREFIX = "hibernate.c3p0.";
+	private static final String[] OWN_CONNECTION_PROPERTIES = {
+		"hibernate.connection.datasource", "hibernate.connection.provider_class"
+	};
+	private static final String C3P0_CLASS = "com.mchange.v2.c3p0.ComboPooledDataSource";
+	private static final String C3P0_JMX_DOMAIN = "com.mchange.v2.c3p0";
+	private static final String[] POOL_ATTRIBUTES = {
+		"numConnectionsDefaultUser", "numBusyConnectionsDefaultUser",
+		"numIdleConnectionsDefaultUser", "numThreadsAwaitingCheckoutDefaultUser",
+		"numUnclosedOrphanedConnectionsDefaultUser", "maxPoolSize", "jdbcUrl"
+	};
+
+	private static final Logger logger = LogUtil.getLogger(ConnectionPool.class);
+	private static Boolean available;
+
+	private ConnectionPool() {}
+
+	/**
+	 * Whether the given connection property configures the pool, in which
+	 * case existing entity manager factories have to be re-created.
+	 */
+	public static boolean isPoolProperty(String key) {
+		return key.startsWith("pool.") || key.startsWith(C3P0_PREFIX);
+	}
+
+	/**
+	 * Translates the "pool.*" properties in the given map into
+	 * "hibernate.c3p0.*" properties, and adds configured defaults for 
+	 * all properties defined neither in the map nor in unitProps 
+	 * (the properties of the persistence unit, see {@link PersistenceUnitProperties}).
+	 * Returns the max. pool size, or -1 if pooling is not enabled.
+	 */
+	public static int configure(Map<String, String> props, Map<String, String> unitProps) {
+		String enabled = get(props, PROP_ENABLED, Configuration.PROP_DB_POOL_ENABLED, "false");
+		Map<String, String> pool = new HashMap<String, String>();
+		for (String key : props.keySet().toArray(new String[0])) {
+			if (key.startsWith("pool.")) {
+				pool.put(key, props.remove(key));
+			}
+		}
+		if (!Boolean.parseBoolean(enabled) || !isAvailable()) {
+			return -1;
+		}
+		for (String key : OWN_CONNECTION_PROPERTIES) {
+			if (props.containsKey(key) || unitProps.containsKey(key)) {
+				return -1;
+			}
+		}
+		Map<String, String> c3p0 = new HashMap<String, String>();
+		c3p0.put("min_size", get(pool, PROP_MIN_SIZE, Configuration.PROP_DB_POOL_MIN_SIZE, "2"));
+		c3p0.put("max_size", get(pool, PROP_MAX_SIZE, Configuration.PROP_DB_POOL_MAX_SIZE, "10"));
+		c3p0.put("timeout", get(pool, PROP_IDLE_TIMEOUT, Configuration.PROP_DB_POOL_IDLE_TIMEOUT, "300"));
+		/* statement cache, shared by all connections of the pool */
+		c3p0.put("max_statements", get(pool, PROP_MAX_STATEMENTS, Configuration.PROP_DB_POOL_MAX_STATEMENTS, "200"));
+		String validation = get(pool, PROP_VALIDATION, Configuration.PROP_DB_POOL_VALIDATION, VALIDATION_IDLE);
+		String testQuery = get(pool, PROP_TEST_QUERY, Configuration.PROP_DB_POOL_TEST_QUERY, null);
+		if (VALIDATION_CHECKOUT.equals(validation)) {
+			c3p0.put("testConnectionOnCheckout", "true");
+		} else if (VALIDATION_IDLE.equals(validation)) {
+			c3p0.put("idle_test_period", get(pool, PROP_IDLE_TEST_PERIOD,
+					Configuration.PROP_DB_POOL_IDLE_TEST_PERIOD, "60"));
+		}
+		if (testQuery != null && !testQuery.trim().isEmpty()) {
+			c3p0.put("preferredTestQuery", testQuery);
+		}
+		/* explicitly given hibernate.c3p0.* properties, and those of the unit, take precedence */
+		for (Map.Entry<String, String> e : c3p0.entrySet()) {
+			String key = C3P0_PREFIX + e.getKey();
+			if (!props.containsKey(key) && !unitProps.containsKey(key)) {
+				props.put(key, e.getValue());
+			}
+		}
+		String maxSize = C3P0_PREFIX + "max_size";
+		return Integer.parseInt(props.containsKey(maxSize) ? props.get(maxSize) : unitProps.get(maxSize));
+	}
+
+	/**
+	 * Returns the current statistics of all c3p0 pools in this JVM,
+	 * read from the MBeans registered by c3p0: pool name -> attribute -> value.
+	 */
+	public static Map<String, Map<String, Object>> getStatistics() {
+		Map<String, Map<String, Object>> result = new LinkedHashMap<String, Map<String, Object>>();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Set<ObjectName> names = server.queryNames(new ObjectName(C3P0_JMX_DOMAIN + ":*"), null);
+			for (ObjectName name : names) {
+				if (!name.toString().contains("PooledDataSource")) {
+					continue;
+				}
+				Map<String, Object> stats = new LinkedHashMap<String, Object>();
+				for (String attr : POOL_ATTRIBUTES) {
+					try {
+						stats.put(attr, server.getAttribute(name, attr));
+					} catch (Exception e) {
+						/* attribute not supported by this c3p0 version */
+					}
+				}
+				result.put(name.toString(), stats);
+			}
+		} catch (Exception e) {
+			logger.info("Unable to read connection pool statistics: " + e);
+		}
+		return result;
+	}
+
+	private static synchronized boolean isAvailable() {
+		if (available == null) {
+			try {
+				Class.forName(C3P0_CLASS);
+				available = true;
+			} catch (ClassNotFoundException e) {
+				logger.info("c3p0 not found in classpath, connection pooling is disabled.");
+				available = false;
+			}
+		}
+		return available;
+	}
+
+	private static String get(Map<String, String> props, String key,
+			String configKey, String dflt) {
+		if (props.containsKey(key)) {
+			return props.get(key);
+		}
+		String value = Configuration.getString(configKey);
+		return value != null ? value : dflt;
+	}
+
+}
@@ -0,0 +1,72 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool for database operations, separate from the
+ * {@link io.hummer.util.par.GlobalThreadPool}. The number of threads
+ * should match the size of the database connection pool. If all
+ * threads are busy and the queue is full, tasks are executed by the
+ * submitting thread, which throttles producers if the database stalls.
+ *
+ * @author Waldemar Hummer
+ */
+public class DatabaseExecutor {
+
+	public static final int NUM_THREADS =
+			Configuration.getInteger(Configuration.PROP_DB_EXECUTOR_THREADS, 10);
+	public static final int QUEUE_SIZE =
+			Configuration.getInteger(Configuration.PROP_DB_EXECUTOR_QUEUE, 1000);
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			NUM_THREADS, NUM_THREADS, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "db-executor-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private DatabaseExecutor() {}
+
+	public static void execute(Runnable r) {
+		executor.execute(r);
+	}
+
+	public static <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Sets the number of threads, e.g., to match the size
+	 * of a (re-)configured connection pool.
+	 */
+	public static synchronized void setNumThreads(int numThreads) {
+		if (numThreads < executor.getCorePoolSize()) {
+			executor.setCorePoolSize(numThreads);
+			executor.setMaximumPoolSize(numThreads);
+		} else {
+			executor.setMaximumPoolSize(numThreads);
+			executor.setCorePoolSize(numThreads);
+		}
+	}
+
+	public static ThreadPoolExecutor getExecutorService() {
+		return executor;
+	}
+
+}
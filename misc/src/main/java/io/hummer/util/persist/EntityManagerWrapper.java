@@ -3,6 +3,7 @@ package io.hummer.util.persist;
 import io.hummer.util.log.LogUtil;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.EntityManager;
@@ -20,7 +21,10 @@ import org.apache.log4j.Logger;
 
 /**
  * This class wraps the JPA EntityManager interface and contains a counter to
- * keep track of active instances...
+ * keep track of open instances (e.g., to detect entity managers which are 
+ * never closed). If {@link QueryMetrics#ENABLED}, the latencies of entity 
+ * manager operations, queries and transactions are recorded in the 
+ * {@link QueryMetrics}.
  * 
  * @author Waldemar Hummer
  */
@@ -32,46 +36,121 @@ public class EntityManagerWrapper implements EntityManager {
 	private static final Logger logger = LogUtil
 			.getLogger(EntityManagerWrapper.class);
 	private EntityManager instance;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final boolean instrumented = QueryMetrics.ENABLED;
+	private EntityTransaction transaction;
+	/** number of transactions committed by this entity manager */
+	private int commits;
+
+	/**
+	 * Transaction which keeps track of commits and, if instrumented, records 
+	 * the latency of commit/rollback and the duration of the whole transaction.
+	 */
+	private class WrappedTransaction implements EntityTransaction {
+		private final EntityTransaction tx;
+		private long beginTime;
+
+		WrappedTransaction(EntityTransaction tx) {
+			this.tx = tx;
+		}
+		public void begin() {
+			tx.begin();
+			beginTime = System.nanoTime();
+		}
+		public void commit() {
+			long start = System.nanoTime();
+			try {
+				tx.commit();
+				commits++;
+			} finally {
+				record(QueryMetrics.COMMIT, start);
+			}
+		}
+		public void rollback() {
+			long start = System.nanoTime();
+			try {
+				tx.rollback();
+			} finally {
+				record(QueryMetrics.ROLLBACK, start);
+			}
+		}
+		private void record(String operation, long start) {
+			if (!instrumented)
+				return;
+			long now = System.nanoTime();
+			QueryMetrics.getInstance().recordOperation(operation, now - start);
+			QueryMetrics.getInstance().recordOperation(QueryMetrics.TRANSACTION, now - beginTime);
+		}
+		public void setRollbackOnly() {
+			tx.setRollbackOnly();
+		}
+		public boolean getRollbackOnly() {
+			return tx.getRollbackOnly();
+		}
+		public boolean isActive() {
+			return tx.isActive();
+		}
+	}
 
 	public EntityManagerWrapper(EntityManager instance) {
 		this.instance = instance;
 		int i = INSTANCES.incrementAndGet();
 		int stepSize = 100;
-		if (i % stepSize == 0 && i > INSTANCES_THRESHOLD) {
-			logger.info("Entity manager instances: " + i);
-		}
-		if (i % INSTANCES_THRESHOLD == 0) {
-			System.gc();
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-			}
+		if (i % stepSize == 0 && i >= INSTANCES_THRESHOLD) {
+			logger.info("Open entity manager instances: " + i);
 		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		int i = INSTANCES.decrementAndGet();
-		if (i % 100 == 0 && i >= INSTANCES_THRESHOLD) {
-			logger.info("Entity manager instances remaining: " + i);
-		}
-		super.finalize();
+	public static int getOpenInstances() {
+		return INSTANCES.get();
+	}
+
+	private void record(String operation, long start) {
+		QueryMetrics.getInstance().recordOperation(operation, System.nanoTime() - start);
+	}
+
+	private <X> TypedQuery<X> instrument(Query query, String queryString) {
+		return new InstrumentedQuery<X>(query, queryString);
 	}
 
 	public void persist(Object entity) {
-		instance.persist(entity);
+		long start = System.nanoTime();
+		try {
+			instance.persist(entity);
+		} finally {
+			if (instrumented)
+				record(QueryMetrics.PERSIST, start);
+		}
 	}
 
 	public <T> T merge(T entity) {
-		return instance.merge(entity);
+		long start = System.nanoTime();
+		try {
+			return instance.merge(entity);
+		} finally {
+			if (instrumented)
+				record(QueryMetrics.MERGE, start);
+		}
 	}
 
 	public void remove(Object entity) {
-		instance.remove(entity);
+		long start = System.nanoTime();
+		try {
+			instance.remove(entity);
+		} finally {
+			if (instrumented)
+				record(QueryMetrics.REMOVE, start);
+		}
 	}
 
 	public <T> T find(Class<T> entityClass, Object primaryKey) {
-		return instance.find(entityClass, primaryKey);
+		long start = System.nanoTime();
+		try {
+			return instance.find(entityClass, primaryKey);
+		} finally {
+			if (instrumented)
+				record(QueryMetrics.FIND, start);
+		}
 	}
 
 	public <T> T find(Class<T> entityClass, Object primaryKey,
@@ -94,7 +173,13 @@ public class EntityManagerWrapper implements EntityManager {
 	}
 
 	public void flush() {
-		instance.flush();
+		long start = System.nanoTime();
+		try {
+			instance.flush();
+		} finally {
+			if (instrumented)
+				record(QueryMetrics.FLUSH, start);
+		}
 	}
 
 	public void setFlushMode(FlushModeType flushMode) {
@@ -156,7 +241,12 @@ public class EntityManagerWrapper implements EntityManager {
 	}
 
 	public Query createQuery(String qlString) {
-		return instance.createQuery(qlString);
+		if (!instrumented)
+			return instance.createQuery(qlString);
+		long start = System.nanoTime();
+		Query q = instance.createQuery(qlString);
+		record(QueryMetrics.CREATE_QUERY, start);
+		return instrument(q, qlString);
 	}
 
 	public <T> TypedQuery<T> createQuery(CriteriaQuery<T> criteriaQuery) {
@@ -164,7 +254,12 @@ public class EntityManagerWrapper implements EntityManager {
 	}
 
 	public <T> TypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
-		return instance.createQuery(qlString, resultClass);
+		if (!instrumented)
+			return instance.createQuery(qlString, resultClass);
+		long start = System.nanoTime();
+		TypedQuery<T> q = instance.createQuery(qlString, resultClass);
+		record(QueryMetrics.CREATE_QUERY, start);
+		return instrument(q, qlString);
 	}
 
 	public Query createNamedQuery(String name) {
@@ -176,16 +271,19 @@ public class EntityManagerWrapper implements EntityManager {
 	}
 
 	public Query createNativeQuery(String sqlString) {
-		return instance.createNativeQuery(sqlString);
+		Query q = instance.createNativeQuery(sqlString);
+		return instrumented ? instrument(q, sqlString) : q;
 	}
 
 	@SuppressWarnings("all")
 	public Query createNativeQuery(String sqlString, Class resultClass) {
-		return instance.createNativeQuery(sqlString, resultClass);
+		Query q = instance.createNativeQuery(sqlString, resultClass);
+		return instrumented ? instrument(q, sqlString) : q;
 	}
 
 	public Query createNativeQuery(String sqlString, String resultSetMapping) {
-		return instance.createNativeQuery(sqlString, resultSetMapping);
+		Query q = instance.createNativeQuery(sqlString, resultSetMapping);
+		return instrumented ? instrument(q, sqlString) : q;
 	}
 
 	public void joinTransaction() {
@@ -201,6 +299,9 @@ public class EntityManagerWrapper implements EntityManager {
 	}
 
 	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			INSTANCES.decrementAndGet();
+		}
 		instance.close();
 	}
 
@@ -209,7 +310,13 @@ public class EntityManagerWrapper implements EntityManager {
 	}
 
 	public EntityTransaction getTransaction() {
-		return instance.getTransaction();
+		if (transaction == null)
+			transaction = new WrappedTransaction(instance.getTransaction());
+		return transaction;
+	}
+
+	public int getCommitCount() {
+		return commits;
 	}
 
 	public EntityManagerFactory getEntityManagerFactory() {
@@ -3,13 +3,21 @@ package io.hummer.util.persist;
 import io.hummer.util.Configuration;
 import io.hummer.util.log.LogUtil;
 import io.hummer.util.par.GlobalThreadPool;
-import io.hummer.util.str.StringUtil;
+import io.hummer.util.perf.MemoryPressureMonitor;
+import io.hummer.util.persist.AbstractGenericDAO.EntityManagerCallback;
 
-import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.persistence.Column;
@@ -17,20 +25,41 @@ import javax.persistence.Entity;
 import javax.persistence.EntityManager;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Query;
 
 import org.apache.commons.codec.binary.StringUtils;
 import org.apache.log4j.Logger;
+import org.hibernate.annotations.Index;
+
+import com.google.common.hash.Hashing;
 
 public interface IDocumentCache {
 
 	@Entity(name="CacheEntry")
 	public static class CacheEntry {
+		public static final int KEY_PREFIX_LENGTH = 255;
 		@Id @GeneratedValue
 		public Long ID;
 		@Column(name="keyString", columnDefinition="LONGVARCHAR", length=10000000) 
 		public String key;
+		/** 64-bit hash of the key, used for indexed lookups */
+		@Column(name="keyHash", unique=true)
+		public Long keyHash;
+		/** indexed prefix of the key, for efficient prefix queries */
+		@Index(name="CacheEntry_keyPrefix")
+		@Column(name="keyPrefix", length=KEY_PREFIX_LENGTH)
+		public String keyPrefix;
+		/** uncompressed value of legacy entries, new entries use {@link #valueData} */
+		@Deprecated
 		@Column(name="valueString", columnDefinition="LONGVARCHAR", length=10000000)
 		public String value;
+		@Lob @Column(name="valueData", length=10000000)
+		public byte[] valueData;
+		@Column(name="valueCodec")
+		public Byte valueCodec;
 		@Column(name="storeTime")
 		public long storeTime;
 		@Column(name="firstStoreTime")
@@ -38,22 +67,123 @@ public interface IDocumentCache {
 		public CacheEntry() {}
 		public CacheEntry(String key, String value) {
 			this.key = key;
-			this.value = value;
+			setValue(value);
+		}
+		public CacheEntry(String key, byte[] binaryValue) {
+			this.key = key;
+			setValueBytes(binaryValue);
+		}
+		/**
+		 * Returns the value of this entry, which is decoded 
+		 * (decompressed) upon each invocation of this method.
+		 */
+		@SuppressWarnings("deprecation")
+		public String getValue() {
+			if(valueData == null) {
+				return value;
+			}
+			return CacheValueCodec.decode(valueData, 
+					valueCodec == null ? CacheValueCodec.CODEC_RAW : valueCodec);
+		}
+		@SuppressWarnings("deprecation")
+		public void setValue(String value) {
+			this.value = null;
+			if(value == null) {
+				valueData = null;
+				valueCodec = null;
+				return;
+			}
+			byte[] codec = new byte[1];
+			valueData = CacheValueCodec.encode(value, codec);
+			valueCodec = codec[0];
+		}
+		/**
+		 * Returns the (decompressed) bytes of a binary value, 
+		 * or the UTF-8 bytes of a text value.
+		 */
+		@SuppressWarnings("deprecation")
+		public byte[] getValueBytes() {
+			if(valueData == null) {
+				return value == null ? null : StringUtils.getBytesUtf8(value);
+			}
+			return CacheValueCodec.decodeBytes(valueData, 
+					valueCodec == null ? CacheValueCodec.CODEC_RAW : valueCodec);
+		}
+		@SuppressWarnings("deprecation")
+		public void setValueBytes(byte[] binaryValue) {
+			this.value = null;
+			if(binaryValue == null) {
+				valueData = null;
+				valueCodec = null;
+				return;
+			}
+			byte[] codec = new byte[1];
+			valueData = CacheValueCodec.encodeBinary(binaryValue, codec);
+			valueCodec = codec[0];
+		}
+		public boolean isBinary() {
+			return valueCodec != null && CacheValueCodec.isBinary(valueCodec);
+		}
+		@PrePersist @PreUpdate
+		void updateKeyColumns() {
+			keyHash = key == null ? null : hashKey(key);
+			keyPrefix = key == null ? null : getKeyPrefix(key);
+		}
+		public static String getKeyPrefix(String key) {
+			return key.substring(0, Math.min(key.length(), KEY_PREFIX_LENGTH));
+		}
+		public static long hashKey(String key) {
+			return Hashing.murmur3_128().hashBytes(StringUtils.getBytesUtf8(key)).asLong();
+		}
+		@SuppressWarnings("deprecation")
+		private void copyValueFrom(CacheEntry other) {
+			value = other.value;
+			valueData = other.valueData;
+			valueCodec = other.valueCodec;
 		}
 	}
 	
+	/**
+	 * Loads the value for a cache key which is not (or no longer) cached.
+	 */
+	public static interface CacheLoader {
+		CacheEntry load(String key) throws Exception;
+	}
+
 	CacheEntry get(String key);
+	/**
+	 * Returns the cached entry for the given key, or loads and caches the 
+	 * value using the given loader. Concurrent requests for the same key 
+	 * share a single load operation.
+	 */
+	CacheEntry get(String key, CacheLoader loader) throws Exception;
 	CacheEntry put(String key, String value);
+	CacheEntry put(CacheEntry entry);
 	void putWithoutWaiting(String key, String value);
+	/**
+	 * Removes the entry with the given key from all tiers of this cache.
+	 */
+	void remove(String key);
 	List<String> getKeys(String nameLike);
+	/**
+	 * Returns the keys matching the given LIKE pattern, in key order, 
+	 * starting at index firstResult and with at most maxResults keys.
+	 */
+	List<String> getKeys(String nameLike, int firstResult, int maxResults);
+	/**
+	 * Returns the metrics of this cache (also exposed via JMX).
+	 */
+	CacheMetrics getMetrics();
 
 	public static class DocumentCache implements IDocumentCache {
 		
-		public static final Map<String,CacheEntry> cache = new HashMap<String,CacheEntry>();
+		public static final ConcurrentNavigableMap<String,CacheEntry> cache = 
+				new ConcurrentSkipListMap<String,CacheEntry>();
+		private static final CacheKeyIndex ramKeys = new CacheKeyIndex(cache.navigableKeySet());
 
 		private static final Logger logger = LogUtil.getLogger(IDocumentCache.class);
 
-		/** renew documents (at most) every 60 minutes */
+		/** renew documents (at most) every 60 minutes (soft TTL, see {@link CacheRevalidator}) */
 		public static final long RENEWAL_INTERVAL = 1000*60*60;
 		
 		public static final AtomicReference<String> DEFAULT_PERSISTENCE_UNIT = 
@@ -66,35 +196,154 @@ public interface IDocumentCache {
 				Configuration.getBoolean(Configuration.PROP_CACHE_IN_DB, false);
 		private static final boolean DO_OVERWRITE = 
 				Configuration.getBoolean(Configuration.PROP_CACHE_OVERWRITE, true);
+		private static final boolean WRITE_BEHIND = 
+				Configuration.getBoolean(Configuration.PROP_CACHE_WRITE_BEHIND, true);
+		private static final int WRITE_BEHIND_BATCH_SIZE = 
+				Configuration.getInteger(Configuration.PROP_CACHE_WRITE_BEHIND_BATCH, 100);
+		private static final long WRITE_BEHIND_INTERVAL_MS = 
+				Configuration.getLong(Configuration.PROP_CACHE_WRITE_BEHIND_INTERVAL, 2000L);
+		private static final long PURGE_INTERVAL_MS = 
+				Configuration.getLong(Configuration.PROP_CACHE_PURGE_INTERVAL, 1000L*60*10);
+		private static final int PURGE_BATCH_SIZE = 1000;
+
+		/** write-behind queues, shared by all caches of the same persistence unit */
+		private static final Map<String,CacheWriteBehindQueue> writeQueues = 
+				new HashMap<String,CacheWriteBehindQueue>();
+		/** metrics, shared by all caches of the same persistence unit */
+		private static final Map<String,CacheMetrics> metrics = 
+				new HashMap<String,CacheMetrics>();
+		/** loads and refreshes, shared by all caches of the same persistence unit */
+		private static final Map<String,CacheRevalidator> revalidators = 
+				new HashMap<String,CacheRevalidator>();
+		/** persistence units for which the purge of expired entries has been scheduled */
+		private static final Set<String> purgedUnits = new HashSet<String>();
+
+		/** snapshot of the in-memory tier, for warm starts */
+		private static final CacheSnapshot snapshot = !CACHE_IN_RAM ? null : 
+				CacheSnapshot.createFromConfig(new CacheSnapshot.CacheTier() {
+			public CacheEntry getInMemory(String key) {
+				return cache.get(key);
+			}
+			public CacheEntry load(String key) {
+				return new DocumentCache().lookup(key);
+			}
+			public void putInMemory(CacheEntry entry) {
+				while(true) {
+					CacheEntry existing = cache.putIfAbsent(entry.key, entry);
+					if(existing == null || existing.storeTime >= entry.storeTime || 
+							cache.replace(entry.key, existing, entry)) {
+						return;
+					}
+				}
+			}
+		});
+
+		static {
+			if(CACHE_IN_RAM) {
+				MemoryPressureMonitor.register("DocumentCache", MemoryPressureMonitor.PRIORITY_NORMAL, 
+						new MemoryPressureMonitor.Shrinkable() {
+					public int shrink(double fraction) {
+						return shrinkInMemory(fraction);
+					}
+				});
+			}
+		}
 
 		private String persistenceUnitName;
 
 		public DocumentCache() {
-			this.persistenceUnitName = DEFAULT_PERSISTENCE_UNIT.get();
+			this(DEFAULT_PERSISTENCE_UNIT.get());
 		}
 		public DocumentCache(String persistenceUnitName) {
 			this.persistenceUnitName = persistenceUnitName;
+			schedulePurge();
+		}
+
+		/**
+		 * Periodically deletes expired entries from the database, as 
+		 * reads only skip (but no longer delete) expired entries.
+		 */
+		private void schedulePurge() {
+			if(!CACHE_IN_DB) {
+				return;
+			}
+			synchronized (purgedUnits) {
+				if(!purgedUnits.add(persistenceUnitName)) {
+					return;
+				}
+			}
+			final DocumentCache storage = this;
+			GlobalThreadPool.executePeriodically(new Runnable() {
+				public void run() {
+					GlobalThreadPool.execute(new Runnable() {
+						public void run() {
+							storage.purgeExpired();
+						}
+					});
+				}
+			}, PURGE_INTERVAL_MS);
 		}
 		
 		public CacheEntry get(String key) {
 			String keyString = keyToString(key);
-			if(cache.containsKey(keyString)) {
-				CacheEntry existing = cache.get(keyString);
-				if((System.currentTimeMillis() - existing.storeTime) < RENEWAL_INTERVAL) {
+			if(snapshot != null) {
+				snapshot.recordAccess(keyString);
+			}
+			CacheEntry existing = lookup(keyString);
+			if(!CacheRevalidator.isFresh(existing)) {
+				getMetrics().recordMiss();
+				return null;
+			}
+			getMetrics().recordHit(keyString);
+			return existing;
+		}
+	
+		public CacheEntry get(String key, CacheLoader loader) throws Exception {
+			String keyString = keyToString(key);
+			if(snapshot != null) {
+				snapshot.recordAccess(keyString);
+			}
+			return getRevalidator().get(keyString, loader);
+		}
+
+		/**
+		 * Returns the entry for the given key, including stale entries
+		 * which have not yet exceeded the hard TTL.
+		 */
+		private CacheEntry lookup(String keyString) {
+			CacheMetrics m = getMetrics();
+			long start = System.nanoTime();
+			CacheEntry existing = cache.get(keyString);
+			if(existing != null) {
+				if(CacheRevalidator.isUsable(existing)) {
+					m.recordLatency(CacheMetrics.LOOKUP_RAM, System.nanoTime() - start);
 					return existing;
-				} else {
-					cache.remove(keyString);
+				}
+				if(cache.remove(keyString, existing)) {
+					m.recordEvictions(1);
 				}
 			}
 			if(CACHE_IN_DB) {
+				if(WRITE_BEHIND) {
+					start = System.nanoTime();
+					CacheEntry pending = getWriteQueue().get(keyString);
+					m.recordLatency(CacheMetrics.LOOKUP_QUEUE, System.nanoTime() - start);
+					if(pending != null) {
+						return pending;
+					}
+				}
+				CacheKeyFilter filter = CacheKeyFilter.get(persistenceUnitName);
+				if(filter != null && !filter.mightContain(keyString)) {
+					m.recordFilteredLookup();
+					return null;
+				}
 				try {
-					CacheEntry existing = getPersistent(keyString);
-					if(existing != null) {
-						if((System.currentTimeMillis() - existing.storeTime) < RENEWAL_INTERVAL) {
-							return existing;
-						} else {
-							removePersistent(existing);
-						}
+					start = System.nanoTime();
+					existing = getPersistent(keyString);
+					m.recordLatency(CacheMetrics.LOOKUP_DB, System.nanoTime() - start);
+					/* expired entries are deleted by the periodic purge, not here */
+					if(CacheRevalidator.isUsable(existing)) {
+						return existing;
 					}
 				} catch (Exception e) { 
 					logger.warn("Unable to load cache value from DB:", e);
@@ -102,134 +351,459 @@ public interface IDocumentCache {
 			}
 			return null;
 		}
-	
-		public void putWithoutWaiting(final String key, final String value) {
-			Runnable r = new Runnable() {
-				public void run() {
-					put(key, value);
-				}
-			};
-			GlobalThreadPool.execute(r);
+
+		public void putWithoutWaiting(String key, String value) {
+			put(new CacheEntry(key, value), false);
 		}
 		
 		public CacheEntry put(String key, String value) {
-			StringUtil util = new StringUtil();
-			if(logger.isDebugEnabled()) logger.debug("Putting value to cache: " + key + " = " + util.trim(value, 100));
+			return put(new CacheEntry(key, value), true);
+		}
+
+		public CacheEntry put(CacheEntry entry) {
+			return put(entry, true);
+		}
+
+		public void remove(String key) {
 			String keyString = keyToString(key);
-			CacheEntry e = new CacheEntry(keyString, value);
+			cache.remove(keyString);
+			if(CACHE_IN_DB) {
+				if(WRITE_BEHIND) {
+					getWriteQueue().remove(keyString);
+				}
+				try {
+					removePersistent(keyString);
+				} catch (Exception e) {
+					logger.warn("Unable to remove cache value for key '" + keyString + "' from DB.", e);
+				}
+			}
+		}
+
+		/**
+		 * Writes all pending (write-behind) cache entries to the database.
+		 */
+		public void flush() {
+			if(CACHE_IN_DB && WRITE_BEHIND) {
+				getWriteQueue().flush();
+			}
+		}
+
+		private CacheEntry put(CacheEntry e, boolean waitForDB) {
+			return put(e, waitForDB, false);
+		}
+
+		/**
+		 * @param keepStoreTime whether to keep the store time of the given entry (if set), 
+		 * e.g., for entries loaded from the cache of a peer node
+		 */
+		private CacheEntry put(CacheEntry e, boolean waitForDB, boolean keepStoreTime) {
+			if(logger.isDebugEnabled()) logger.debug("Putting value to cache: " + e.key + " (" + 
+					(e.valueData == null ? 0 : e.valueData.length) + " bytes)");
+			String keyString = keyToString(e.key);
+			e.key = keyString;
+			if(!keepStoreTime || e.storeTime <= 0) {
+				e.storeTime = System.currentTimeMillis();
+			}
+			getMetrics().recordPut(e.valueData == null ? 0 : e.valueData.length);
 			if(CACHE_IN_RAM) {
 				cache.put(keyString, e);
 			}
 			if(CACHE_IN_DB) {
+				if(!waitForDB) {
+					if(WRITE_BEHIND) {
+						getWriteQueue().add(e);
+					} else {
+						final CacheEntry entry = e;
+						DatabaseExecutor.execute(new Runnable() {
+							public void run() {
+								try {
+									putPersistent(entry);
+								} catch (Exception e2) {
+									logger.error("DocumentCache: Unable to store value for key '" + entry.key + "'", e2);
+								}
+							}
+						});
+					}
+					return e;
+				}
 				try {
 					putPersistent(e);
 				} catch (Exception e2) {
-					logger.error("DocumentCache: Unable to store value for key '" + key + "'", e2);
+					logger.error("DocumentCache: Unable to store value for key '" + keyString + "'", e2);
 				}
 			}
 			return e;
 		}
 
-		public List<String> getKeys(String nameLike) {
-			List<String> result = new LinkedList<String>();
-			try {
-				if(CACHE_IN_DB) {
-					EntityManager em = AbstractGenericDAO.get(persistenceUnitName).createEntityManager();
-					List<?> list = em.createQuery("from " + CacheEntry.class.getSimpleName() + 
-							" where keyString like :key").setParameter("key", nameLike).getResultList();
-					for(Object o : list) {
-						if(((CacheEntry)o).key != null)
-							result.add(((CacheEntry)o).key);
+		/**
+		 * Removes the given fraction of in-memory entries, oldest entries first.
+		 */
+		private static int shrinkInMemory(double fraction) {
+			List<CacheEntry> entries = new ArrayList<CacheEntry>(cache.values());
+			Collections.sort(entries, new Comparator<CacheEntry>() {
+				public int compare(CacheEntry o1, CacheEntry o2) {
+					return o1.storeTime < o2.storeTime ? -1 : o1.storeTime > o2.storeTime ? 1 : 0;
+				}
+			});
+			int toRemove = (int)Math.ceil(entries.size() * fraction);
+			int removed = 0;
+			for(CacheEntry e : entries.subList(0, toRemove)) {
+				if(cache.remove(e.key, e)) {
+					removed ++;
+				}
+			}
+			return removed;
+		}
+
+		private CacheWriteBehindQueue getWriteQueue() {
+			synchronized (writeQueues) {
+				CacheWriteBehindQueue queue = writeQueues.get(persistenceUnitName);
+				if(queue == null) {
+					final DocumentCache writer = new DocumentCache(persistenceUnitName);
+					queue = new CacheWriteBehindQueue(new CacheWriteBehindQueue.BatchWriter() {
+						public void write(List<CacheEntry> entries) throws Exception {
+							writer.putPersistent(entries);
+						}
+					}, WRITE_BEHIND_BATCH_SIZE, WRITE_BEHIND_INTERVAL_MS);
+					writeQueues.put(persistenceUnitName, queue);
+				}
+				return queue;
+			}
+		}
+
+		public CacheMetrics getMetrics() {
+			synchronized (metrics) {
+				CacheMetrics m = metrics.get(persistenceUnitName);
+				if(m == null) {
+					m = new CacheMetrics();
+					if(CACHE_IN_RAM) {
+						/* the in-memory tier is shared by all persistence units */
+						m.setSizeGauge(new CacheMetrics.SizeGauge() {
+							public long getEntryCount() {
+								return cache.size();
+							}
+							public long getWeightBytes() {
+								long bytes = 0;
+								for(CacheEntry e : cache.values()) {
+									bytes += e.valueData == null ? 0 : e.valueData.length;
+								}
+								return bytes;
+							}
+						});
 					}
+					m.register(persistenceUnitName);
+					metrics.put(persistenceUnitName, m);
+				}
+				return m;
+			}
+		}
+
+		private CacheRevalidator getRevalidator() {
+			synchronized (revalidators) {
+				CacheRevalidator revalidator = revalidators.get(persistenceUnitName);
+				if(revalidator == null) {
+					final DocumentCache storage = new DocumentCache(persistenceUnitName);
+					revalidator = new CacheRevalidator(new CacheRevalidator.Storage() {
+						public CacheEntry lookup(String key) {
+							return storage.lookup(key);
+						}
+						public CacheEntry store(CacheEntry entry) {
+							return storage.put(entry, false, true);
+						}
+					}, getMetrics());
+					revalidators.put(persistenceUnitName, revalidator);
 				}
-				if(CACHE_IN_RAM) {
-					result.addAll(cache.keySet());
+				return revalidator;
+			}
+		}
+
+		/**
+		 * Deletes all entries which have exceeded the hard TTL from the database.
+		 */
+		public void purgeExpired() {
+			final long time = System.currentTimeMillis() - CacheRevalidator.HARD_TTL_MS;
+			final CacheKeyFilter filter = CacheKeyFilter.get(persistenceUnitName);
+			try {
+				int count = getDAO().execute(new EntityManagerCallback<Integer>() {
+					public Integer execute(EntityManager em) throws Exception {
+						int count = 0;
+						List<?> rows;
+						do {
+							rows = em.createQuery("select e.ID, e.keyHash from " + CacheEntry.class.getSimpleName() + 
+									" e where e.storeTime < :time").setParameter("time", time)
+									.setMaxResults(PURGE_BATCH_SIZE).getResultList();
+							if(rows.isEmpty()) {
+								break;
+							}
+							List<Long> ids = new ArrayList<Long>();
+							for(Object o : rows) {
+								ids.add((Long)((Object[])o)[0]);
+							}
+							em.getTransaction().begin();
+							count += em.createQuery("delete from " + CacheEntry.class.getSimpleName() + 
+									" e where e.ID in (:ids) and e.storeTime < :time")
+									.setParameter("ids", ids).setParameter("time", time).executeUpdate();
+							em.getTransaction().commit();
+							if(filter != null) {
+								/* rows which have been updated in the meantime are not deleted */
+								List<?> remaining = em.createQuery("select e.ID from " + CacheEntry.class.getSimpleName() + 
+										" e where e.ID in (:ids)").setParameter("ids", ids).getResultList();
+								for(Object o : rows) {
+									Object[] row = (Object[])o;
+									if(row[1] != null && !remaining.contains(row[0])) {
+										filter.remove((Long)row[1]);
+									}
+								}
+							}
+						} while(rows.size() >= PURGE_BATCH_SIZE);
+						return count;
+					}
+				});
+				if(count > 0) {
+					getMetrics().recordEvictions(count);
+					logger.info("Purged " + count + " expired cache entries.");
 				}
 			} catch (Exception e) {
-				logger.warn("Unable to read keys from DB.", e);
+				logger.warn("Unable to purge expired cache entries.", e);
+			}
+		}
+
+		public List<String> getKeys(String nameLike) {
+			return getKeys(nameLike, 0, Integer.MAX_VALUE);
+		}
+
+		public List<String> getKeys(String nameLike, int firstResult, int maxResults) {
+			/* the first (firstResult + maxResults) keys of each source 
+			 * are merged in key order, and the requested page is cut out */
+			int limit = (int)Math.min(Integer.MAX_VALUE, (long)firstResult + maxResults);
+			SortedSet<String> merged = new TreeSet<String>();
+			if(CACHE_IN_RAM) {
+				merged.addAll(ramKeys.getKeys(nameLike, 0, limit));
+			}
+			if(CACHE_IN_DB) {
+				String prefix = CacheKeyIndex.getLiteralPrefix(nameLike);
+				if(prefix.length() > CacheEntry.KEY_PREFIX_LENGTH) {
+					prefix = prefix.substring(0, CacheEntry.KEY_PREFIX_LENGTH);
+				}
+				final String prefixPattern = prefix + "%";
+				final String keyPattern = nameLike;
+				final int maxKeys = limit;
+				/* entries without key prefix exist only until the key migration is complete */
+				final String prefixClause = CacheKeyMigration.isComplete(persistenceUnitName) ?
+						"e.keyPrefix like :prefix" : "(e.keyPrefix like :prefix or e.keyPrefix is null)";
+				try {
+					merged.addAll(getDAO().executeRead(new EntityManagerCallback<List<String>>() {
+						public List<String> execute(EntityManager em) {
+							/* ordering by the indexed prefix instead of the (unindexed) key yields key 
+							 * order, except for keys with equal prefixes, which are sorted when merged */
+							Query q = em.createQuery("select e.key from " + CacheEntry.class.getSimpleName() + 
+									" e where " + prefixClause + " and e.key like :key" +
+									" order by e.keyPrefix, e.ID")
+									.setParameter("prefix", prefixPattern)
+									.setParameter("key", keyPattern);
+							if(maxKeys < Integer.MAX_VALUE) {
+								q.setMaxResults(maxKeys);
+							}
+							List<String> keys = toKeys(q.getResultList());
+							if(maxKeys > 0 && keys.size() >= maxKeys) {
+								/* the keys sharing the prefix of the last key are cut off in ID order, 
+								 * hence all of them are required to determine the first keys in key order */
+								keys.addAll(toKeys(em.createQuery("select e.key from " + CacheEntry.class.getSimpleName() + 
+										" e where e.keyPrefix = :lastPrefix and e.key like :key")
+										.setParameter("lastPrefix", CacheEntry.getKeyPrefix(keys.get(keys.size() - 1)))
+										.setParameter("key", keyPattern).getResultList()));
+							}
+							return keys;
+						}
+					}));
+				} catch (Exception e) {
+					logger.warn("Unable to read keys from DB.", e);
+				}
+			}
+			List<String> result = new ArrayList<String>();
+			for(String key : merged) {
+				if(result.size() >= maxResults) {
+					break;
+				}
+				if(firstResult > 0) {
+					firstResult --;
+				} else {
+					result.add(key);
+				}
 			}
 			return result;
 		}
 
-		private void removePersistent(CacheEntry e) throws Exception {
-			EntityManager em = AbstractGenericDAO.get(persistenceUnitName).createEntityManager();
-			e = em.merge(e);
+		private static List<String> toKeys(List<?> list) {
+			List<String> keys = new ArrayList<String>();
+			for(Object o : list) {
+				if(o != null)
+					keys.add((String)o);
+			}
+			return keys;
+		}
+
+		private void putPersistent(final CacheEntry entry) throws Exception {
+			long start = System.nanoTime();
+			boolean added = getDAO().execute(new EntityManagerCallback<Boolean>() {
+				public Boolean execute(EntityManager em) {
+					CacheEntry e = entry;
+					CacheEntry existing = getPersistent(e.key);
+					if(existing != null) {
+						if(!DO_OVERWRITE) {
+							if(logger.isDebugEnabled()) logger.debug("Entity with same key ('" + e.key + "') already exists in cache, please choose new name or set 'overwrite' to true...");
+							return false;
+						} else {
+							if(logger.isDebugEnabled()) logger.debug("Overwriting object store entry with key '" + e.key + "'");
+						}
+						e = existing;
+						e.key = entry.key;
+						e.copyValueFrom(entry);
+					}
 
-			em.getTransaction().begin();
-			em.remove(e);
-			em.getTransaction().commit();
+					e.storeTime = entry.storeTime > 0 ? entry.storeTime : System.currentTimeMillis();
+					if(e.firstStoreTime <= 0) {
+						e.firstStoreTime = e.storeTime;
+					}
 
-			em.close();
+					em.getTransaction().begin();
+					em.persist(e);
+					em.getTransaction().commit();
+					return existing == null;
+				}
+			});
+			if(added) {
+				addToKeyFilter(entry.key);
+			}
+			getMetrics().recordLatency(CacheMetrics.STORE_DB, System.nanoTime() - start);
 		}
-		private void putPersistent(CacheEntry e) throws Exception {
 
-			EntityManager em = AbstractGenericDAO.get(persistenceUnitName).createEntityManager();
-			CacheEntry existing = getPersistent(e.key);
-			
-			if(existing != null) {
-				if(!DO_OVERWRITE) {
-					if(logger.isDebugEnabled()) logger.debug("Entity with same key ('" + e.key + "') already exists in cache, please choose new name or set 'overwrite' to true...");
-					return;
-				} else {
-					if(logger.isDebugEnabled()) logger.debug("Overwriting object store entry with key '" + e.key + "'");
+		/**
+		 * Stores a batch of entries in a single transaction. If the batch 
+		 * cannot be written as a whole, the entries are stored one by one.
+		 */
+		private void putPersistent(final List<CacheEntry> entries) throws Exception {
+			long start = System.nanoTime();
+			try {
+				List<String> added = getDAO().executeInTransaction(new EntityManagerCallback<List<String>>() {
+					public List<String> execute(EntityManager em) {
+						List<String> keys = new ArrayList<String>();
+						List<Long> hashes = new ArrayList<Long>();
+						for(CacheEntry e : entries) {
+							keys.add(e.key);
+							hashes.add(CacheEntry.hashKey(e.key));
+						}
+						Map<String,CacheEntry> existing = new HashMap<String,CacheEntry>();
+						List<?> list;
+						if(CacheKeyMigration.isComplete(persistenceUnitName)) {
+							list = em.createQuery("from " + CacheEntry.class.getSimpleName() + 
+									" e where e.keyHash in (:hashes)")
+									.setParameter("hashes", hashes).getResultList();
+						} else {
+							list = em.createQuery("from " + CacheEntry.class.getSimpleName() + 
+									" e where e.keyHash in (:hashes) or (e.keyHash is null and keyString in (:keys))")
+									.setParameter("hashes", hashes).setParameter("keys", keys).getResultList();
+						}
+						for(Object o : list) {
+							existing.put(((CacheEntry)o).key, (CacheEntry)o);
+						}
+
+						List<String> added = new ArrayList<String>();
+						for(CacheEntry e : entries) {
+							CacheEntry old = existing.get(e.key);
+							if(old != null) {
+								if(!DO_OVERWRITE) {
+									continue;
+								}
+								old.copyValueFrom(e);
+								old.storeTime = e.storeTime;
+							} else {
+								e.firstStoreTime = e.storeTime;
+								em.persist(e);
+								existing.put(e.key, e);
+								added.add(e.key);
+							}
+						}
+						return added;
+					}
+				});
+				for(String key : added) {
+					addToKeyFilter(key);
+				}
+				getMetrics().recordLatency(CacheMetrics.STORE_DB, System.nanoTime() - start);
+				if(logger.isDebugEnabled()) logger.debug("Stored batch of " + entries.size() + " cache entries.");
+			} catch (Exception e) {
+				if(entries.size() <= 1) {
+					throw e;
+				}
+				logger.info("Could not store batch of " + entries.size() + 
+						" cache entries, storing them one by one: " + e);
+				for(CacheEntry entry : entries) {
+					entry.ID = null;
+					try {
+						putPersistent(entry);
+					} catch (Exception e2) {
+						logger.error("DocumentCache: Unable to store value for key '" + entry.key + "'", e2);
+					}
 				}
-				CacheEntry e1 = e;
-				existing = em.merge(existing);
-				e = existing;
-				e.key = e1.key;
-				e.value = e1.value;
 			}
+		}
 
-			e.storeTime = System.currentTimeMillis();
-			if(e.firstStoreTime <= 0) {
-				e.firstStoreTime = e.storeTime;
+		private void removePersistent(final String key) {
+			final long hash = CacheEntry.hashKey(key);
+			/* entries without key hash exist only until the key migration is complete */
+			final String hashClause = CacheKeyMigration.isComplete(persistenceUnitName) ?
+					"e.keyHash=:hash" : "(e.keyHash=:hash or e.keyHash is null)";
+			int count = getDAO().executeInTransaction(new EntityManagerCallback<Integer>() {
+				public Integer execute(EntityManager em) {
+					return em.createQuery("delete from " + CacheEntry.class.getSimpleName() + 
+							" e where " + hashClause + " and keyString=:key")
+							.setParameter("hash", hash).setParameter("key", key).executeUpdate();
+				}
+			});
+			CacheKeyFilter filter = CacheKeyFilter.get(persistenceUnitName);
+			if(count > 0 && filter != null) {
+				filter.remove(hash);
 			}
-			e.value = StringUtils.newStringUtf8(StringUtils.getBytesUtf8(e.value));
-			e.key = StringUtils.newStringUtf8(StringUtils.getBytesUtf8(e.key));
+		}
 
-			String valueShort = e.value;
-			if(valueShort.length() > 200)
-				valueShort = valueShort.substring(0, 200) + "...";
+		private void addToKeyFilter(String key) {
+			CacheKeyFilter filter = CacheKeyFilter.get(persistenceUnitName);
+			if(filter != null) {
+				filter.add(CacheEntry.hashKey(key));
+			}
+		}
 
-			em.getTransaction().begin();
+		private CacheEntry getPersistent(final String key) {
 			try {
-				em.persist(e);
-			} catch (Exception e2) {
-				if(e.value != null) {
-					logger.info("Could not persist cache entry. Removing non-mappable characters and re-trying: " + e2);
-					String convertedString = Normalizer
-						           .normalize(e.value, Normalizer.Form.NFD)
-						           .replaceAll("[^\\p{ASCII}]", "");
-					e.value = convertedString;
-				}
-				em.getTransaction().rollback();
-				em.getTransaction().begin();
-				em.persist(e);
-			}
-			em.getTransaction().commit();
-			
-			em.close();
-		}
-
-		private CacheEntry getPersistent(String key) {
-			EntityManager em = AbstractGenericDAO.get(persistenceUnitName).createEntityManager();
-			try {
-				List<?> list = em.createQuery("from " + 
-						CacheEntry.class.getSimpleName() + " where keyString=:key")
-						.setParameter("key", key).getResultList();
-				if(!list.isEmpty()) {
-					CacheEntry existing = (CacheEntry)list.get(0);
-					if(existing != null) {
-						return existing;
+				return getDAO().executeRead(new EntityManagerCallback<CacheEntry>() {
+					public CacheEntry execute(EntityManager em) {
+						List<?> list = em.createQuery("from " + 
+								CacheEntry.class.getSimpleName() + " e where e.keyHash=:hash")
+								.setParameter("hash", CacheEntry.hashKey(key)).getResultList();
+						if(list.isEmpty() && !CacheKeyMigration.isComplete(persistenceUnitName)) {
+							list = em.createQuery("from " + 
+									CacheEntry.class.getSimpleName() + " e where e.keyHash is null and keyString=:key")
+									.setParameter("key", key).getResultList();
+						}
+						for(Object o : list) {
+							/* verify the full key, in case of hash collisions */
+							CacheEntry existing = (CacheEntry)o;
+							if(existing != null && key.equals(existing.key)) {
+								return existing;
+							}
+						}
+						return null;
 					}
-				}
+				});
 			} catch (Exception e) { /* swallow */ }
-			finally {
-				em.close();
-			}
 			return null;
 		}
 
+		private AbstractGenericDAO getDAO() {
+			return AbstractGenericDAO.get(persistenceUnitName);
+		}
+
 		private String keyToString(Object key) {
 			return key.toString();
 		}
@@ -0,0 +1,364 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.perf.Log2Histogram;
+import io.hummer.util.persist.AbstractGenericDAO.EntityManagerCallback;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+/**
+ * Records the sets of identifier properties which entities are looked up by
+ * (see {@link AbstractGenericDAO#load(Class, Map, String...)}), together with
+ * the observed query latencies, and checks them against the indexes reported
+ * by the JDBC metadata of the database. A lookup is considered indexed if the
+ * leading column of some index of the table is among the looked up columns.
+ *
+ * Missing indexes are reported by {@link #getMissingIndexes(AbstractGenericDAO, int)},
+ * ordered by the total time spent in the respective lookups, and can be
+ * created by {@link #createMissingIndexes(AbstractGenericDAO, int)}.
+ * Recording is disabled by default, see {@link #setEnabled(boolean)}.
+ *
+ * @author Waldemar Hummer
+ */
+public class IndexAdvisor {
+
+	private static volatile boolean enabled =
+			Configuration.getBoolean(Configuration.PROP_DB_INDEX_ADVISOR_ENABLED, false);
+	/** min. number of recorded lookups, for a missing index to be reported */
+	public static final int MIN_QUERIES =
+			Configuration.getInteger(Configuration.PROP_DB_INDEX_ADVISOR_MIN_QUERIES, 100);
+
+	private static final int MAX_LOOKUPS = 1000;
+	/** max. length of index names supported by all common databases */
+	private static final int MAX_INDEX_NAME_LENGTH = 30;
+
+	private static final Logger logger = LogUtil.getLogger(IndexAdvisor.class);
+	private static final IndexAdvisor instance = new IndexAdvisor();
+
+	/**
+	 * Lookups of entities of one class by one set of identifier properties.
+	 */
+	private static class Lookup {
+		final String persistenceUnit;
+		final Class<?> entityClass;
+		final Set<String> properties;
+
+		Lookup(String persistenceUnit, Class<?> entityClass, Set<String> properties) {
+			this.persistenceUnit = persistenceUnit;
+			this.entityClass = entityClass;
+			this.properties = properties;
+		}
+		@Override
+		public int hashCode() {
+			return (persistenceUnit == null ? 0 : persistenceUnit.hashCode()) ^
+					entityClass.hashCode() ^ properties.hashCode();
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Lookup))
+				return false;
+			Lookup o = (Lookup) obj;
+			return (persistenceUnit == null ? o.persistenceUnit == null :
+					persistenceUnit.equals(o.persistenceUnit)) &&
+					entityClass == o.entityClass && properties.equals(o.properties);
+		}
+	}
+
+	/**
+	 * A missing index, i.e., a recorded lookup which is not supported
+	 * by an index of the respective table.
+	 */
+	public static class MissingIndex {
+		public final Class<?> entityClass;
+		public final String table;
+		public final List<String> columns;
+		/** latencies of the recorded lookups, in microseconds */
+		public final Log2Histogram latencies;
+
+		MissingIndex(Class<?> entityClass, String table,
+				List<String> columns, Log2Histogram latencies) {
+			this.entityClass = entityClass;
+			this.table = table;
+			this.columns = columns;
+			this.latencies = latencies;
+		}
+		public long getTotalMicros() {
+			return Math.round(latencies.getMean() * latencies.getCount());
+		}
+		public String getIndexName() {
+			StringBuilder b = new StringBuilder("idx_" + table);
+			for (String c : columns) {
+				b.append("_").append(c);
+			}
+			if (b.length() <= MAX_INDEX_NAME_LENGTH) {
+				return b.toString();
+			}
+			return "idx_" + Integer.toHexString(b.toString().toLowerCase().hashCode());
+		}
+		public String getCreateStatement() {
+			StringBuilder b = new StringBuilder();
+			for (String c : columns) {
+				b.append(b.length() > 0 ? ", " : "").append(c);
+			}
+			return "create index " + getIndexName() + " on " + table + " (" + b + ")";
+		}
+		@Override
+		public String toString() {
+			return entityClass.getSimpleName() + " " + table + columns +
+					": total(us)=" + getTotalMicros() + ", latency(us): " + latencies;
+		}
+	}
+
+	private final ConcurrentMap<Lookup, Log2Histogram> lookups =
+			new ConcurrentHashMap<Lookup, Log2Histogram>();
+
+	private IndexAdvisor() {}
+
+	public static IndexAdvisor getInstance() {
+		return instance;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	/**
+	 * Enables or disables the recording of lookups by {@link AbstractGenericDAO}.
+	 */
+	public static void setEnabled(boolean enabled) {
+		IndexAdvisor.enabled = enabled;
+	}
+
+	/**
+	 * Records a lookup of entities of the given class by the given
+	 * identifier properties, which took the given time.
+	 */
+	void record(String persistenceUnit, Class<?> entityClass,
+			Collection<String> properties, long nanos) {
+		Lookup key = new Lookup(persistenceUnit, entityClass, new TreeSet<String>(properties));
+		Log2Histogram h = lookups.get(key);
+		if (h == null) {
+			if (lookups.size() >= MAX_LOOKUPS) {
+				return;
+			}
+			Log2Histogram existing = lookups.putIfAbsent(key, h = new Log2Histogram());
+			if (existing != null) {
+				h = existing;
+			}
+		}
+		h.record(nanos / 1000);
+	}
+
+	public List<MissingIndex> getMissingIndexes(AbstractGenericDAO dao) {
+		return getMissingIndexes(dao, MIN_QUERIES);
+	}
+
+	/**
+	 * Returns the missing indexes for the lookups recorded (at least the
+	 * given number of times) on the persistence unit of the given DAO,
+	 * ordered by the total time spent in the lookups.
+	 */
+	public List<MissingIndex> getMissingIndexes(final AbstractGenericDAO dao, final int minQueries) {
+		final List<MissingIndex> result = new ArrayList<MissingIndex>();
+		final Map<Lookup, Log2Histogram> recorded = new HashMap<Lookup, Log2Histogram>();
+		for (Map.Entry<Lookup, Log2Histogram> e : lookups.entrySet()) {
+			Lookup l = e.getKey();
+			if (l.persistenceUnit != null && l.persistenceUnit.equals(dao.getPersistenceUnitName()) &&
+					e.getValue().getCount() >= minQueries) {
+				recorded.put(l, e.getValue());
+			}
+		}
+		if (recorded.isEmpty()) {
+			return result;
+		}
+		dao.execute(new EntityManagerCallback<Void>() {
+			public Void execute(final EntityManager em) throws Exception {
+				return getSession(em).doReturningWork(new ReturningWork<Void>() {
+					public Void execute(Connection conn) throws SQLException {
+						DatabaseMetaData meta = conn.getMetaData();
+						Map<String, List<List<String>>> indexes = new HashMap<String, List<List<String>>>();
+						for (Map.Entry<Lookup, Log2Histogram> e : recorded.entrySet()) {
+							Lookup l = e.getKey();
+							AbstractEntityPersister persister = getPersister(em, l.entityClass);
+							if (persister == null) {
+								continue;
+							}
+							List<String> columns = getColumns(persister, l.properties);
+							if (columns.isEmpty()) {
+								continue;
+							}
+							String table = persister.getTableName();
+							if (!indexes.containsKey(table)) {
+								indexes.put(table, getIndexes(meta, table));
+							}
+							if (!isIndexed(columns, indexes.get(table))) {
+								result.add(new MissingIndex(l.entityClass, table, columns, e.getValue()));
+							}
+						}
+						return null;
+					}
+				});
+			}
+		});
+		Collections.sort(result, new Comparator<MissingIndex>() {
+			public int compare(MissingIndex o1, MissingIndex o2) {
+				return Long.valueOf(o2.getTotalMicros()).compareTo(o1.getTotalMicros());
+			}
+		});
+		return result;
+	}
+
+	public int createMissingIndexes(AbstractGenericDAO dao) {
+		return createMissingIndexes(dao, MIN_QUERIES);
+	}
+
+	/**
+	 * Creates the missing indexes (see {@link #getMissingIndexes(AbstractGenericDAO, int)}),
+	 * each in its own transaction, and returns the number of created indexes.
+	 */
+	public int createMissingIndexes(AbstractGenericDAO dao, int minQueries) {
+		int count = 0;
+		Set<String> created = new TreeSet<String>();
+		for (final MissingIndex m : getMissingIndexes(dao, minQueries)) {
+			if (!created.add(m.getIndexName().toLowerCase())) {
+				continue;
+			}
+			try {
+				dao.executeInTransaction(new EntityManagerCallback<Void>() {
+					public Void execute(EntityManager em) throws Exception {
+						getSession(em).doWork(new Work() {
+							public void execute(Connection conn) throws SQLException {
+								Statement s = conn.createStatement();
+								try {
+									s.executeUpdate(m.getCreateStatement());
+								} finally {
+									s.close();
+								}
+							}
+						});
+						return null;
+					}
+				});
+				logger.info("Created index: " + m.getCreateStatement() + " (" + m + ")");
+				count++;
+			} catch (Exception e) {
+				logger.warn("Unable to create index: " + m.getCreateStatement(), e);
+			}
+		}
+		return count;
+	}
+
+	public void reset() {
+		lookups.clear();
+	}
+
+	private static boolean isIndexed(List<String> columns, List<List<String>> indexes) {
+		for (List<String> index : indexes) {
+			for (String c : columns) {
+				if (c.equalsIgnoreCase(index.get(0))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the columns of each index of the given table, in index order.
+	 * As the case of unquoted table names is database specific, the
+	 * name is also tried in upper and lower case.
+	 */
+	private static List<List<String>> getIndexes(DatabaseMetaData meta, String table) throws SQLException {
+		String schema = null;
+		if (table.contains(".")) {
+			schema = table.substring(0, table.lastIndexOf('.'));
+			table = table.substring(table.lastIndexOf('.') + 1);
+		}
+		Map<String, Map<Short, String>> indexes = new TreeMap<String, Map<Short, String>>();
+		for (String name : new String[] { table, table.toUpperCase(), table.toLowerCase() }) {
+			ResultSet rs = meta.getIndexInfo(null, schema, name, false, true);
+			try {
+				while (rs.next()) {
+					String index = rs.getString("INDEX_NAME");
+					String column = rs.getString("COLUMN_NAME");
+					if (index == null || column == null) {
+						continue;
+					}
+					if (!indexes.containsKey(index)) {
+						indexes.put(index, new TreeMap<Short, String>());
+					}
+					indexes.get(index).put(rs.getShort("ORDINAL_POSITION"), column);
+				}
+			} finally {
+				rs.close();
+			}
+			if (!indexes.isEmpty()) {
+				break;
+			}
+		}
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Map<Short, String> columns : indexes.values()) {
+			result.add(new ArrayList<String>(columns.values()));
+		}
+		return result;
+	}
+
+	private static Session getSession(EntityManager em) {
+		if (!(em.getDelegate() instanceof Session)) {
+			throw new IllegalStateException("Unexpected return type of EntityManager.getDelegate(): "
+					+ em.getDelegate());
+		}
+		return (Session) em.getDelegate();
+	}
+
+	private static AbstractEntityPersister getPersister(EntityManager em, Class<?> entityClass) {
+		ClassMetadata meta = getSession(em).getSessionFactory().getClassMetadata(entityClass);
+		return meta instanceof AbstractEntityPersister ? (AbstractEntityPersister) meta : null;
+	}
+
+	/**
+	 * Maps the given properties to columns. Properties not
+	 * mapped to a single column (e.g., collections) are skipped.
+	 */
+	private static List<String> getColumns(AbstractEntityPersister persister, Set<String> properties) {
+		List<String> columns = new ArrayList<String>();
+		for (String p : properties) {
+			try {
+				String[] names = p.equals(persister.getIdentifierPropertyName()) ?
+						persister.getIdentifierColumnNames() : persister.getPropertyColumnNames(p);
+				if (names.length == 1 && !persister.getPropertyType(p).isCollectionType()) {
+					columns.add(names[0]);
+				}
+			} catch (Exception e) {
+				/* unknown property */
+			}
+		}
+		return columns;
+	}
+
+}
@@ -0,0 +1,174 @@
+package io.hummer.util.persist;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+/**
+ * Wraps a JPA query and records the latency and number of rows
+ * of each execution in the {@link QueryMetrics}. Untyped queries are
+ * wrapped as well, hence the type parameter is not checked.
+ *
+ * @author Waldemar Hummer
+ */
+public class InstrumentedQuery<X> implements TypedQuery<X> {
+
+	private final Query query;
+	private final String queryString;
+	private final String template;
+
+	public InstrumentedQuery(Query query, String queryString) {
+		this.query = query;
+		this.queryString = queryString;
+		this.template = QueryMetrics.getInstance().getTemplate(queryString);
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<X> getResultList() {
+		long start = System.nanoTime();
+		int rows = -1;
+		try {
+			List<X> result = query.getResultList();
+			rows = result.size();
+			return result;
+		} finally {
+			record(start, rows);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public X getSingleResult() {
+		long start = System.nanoTime();
+		try {
+			return (X) query.getSingleResult();
+		} finally {
+			record(start, 1);
+		}
+	}
+
+	public int executeUpdate() {
+		long start = System.nanoTime();
+		int rows = -1;
+		try {
+			return rows = query.executeUpdate();
+		} finally {
+			record(start, rows);
+		}
+	}
+
+	private void record(long start, int rows) {
+		QueryMetrics.getInstance().recordQuery(template, queryString, System.nanoTime() - start, rows);
+	}
+
+	public TypedQuery<X> setMaxResults(int maxResult) {
+		query.setMaxResults(maxResult);
+		return this;
+	}
+	public int getMaxResults() {
+		return query.getMaxResults();
+	}
+	public TypedQuery<X> setFirstResult(int startPosition) {
+		query.setFirstResult(startPosition);
+		return this;
+	}
+	public int getFirstResult() {
+		return query.getFirstResult();
+	}
+	public TypedQuery<X> setHint(String hintName, Object value) {
+		query.setHint(hintName, value);
+		return this;
+	}
+	public Map<String, Object> getHints() {
+		return query.getHints();
+	}
+	public <T> TypedQuery<X> setParameter(Parameter<T> param, T value) {
+		query.setParameter(param, value);
+		return this;
+	}
+	public TypedQuery<X> setParameter(Parameter<Calendar> param, Calendar value, TemporalType temporalType) {
+		query.setParameter(param, value, temporalType);
+		return this;
+	}
+	public TypedQuery<X> setParameter(Parameter<Date> param, Date value, TemporalType temporalType) {
+		query.setParameter(param, value, temporalType);
+		return this;
+	}
+	public TypedQuery<X> setParameter(String name, Object value) {
+		query.setParameter(name, value);
+		return this;
+	}
+	public TypedQuery<X> setParameter(String name, Calendar value, TemporalType temporalType) {
+		query.setParameter(name, value, temporalType);
+		return this;
+	}
+	public TypedQuery<X> setParameter(String name, Date value, TemporalType temporalType) {
+		query.setParameter(name, value, temporalType);
+		return this;
+	}
+	public TypedQuery<X> setParameter(int position, Object value) {
+		query.setParameter(position, value);
+		return this;
+	}
+	public TypedQuery<X> setParameter(int position, Calendar value, TemporalType temporalType) {
+		query.setParameter(position, value, temporalType);
+		return this;
+	}
+	public TypedQuery<X> setParameter(int position, Date value, TemporalType temporalType) {
+		query.setParameter(position, value, temporalType);
+		return this;
+	}
+	public Set<Parameter<?>> getParameters() {
+		return query.getParameters();
+	}
+	public Parameter<?> getParameter(String name) {
+		return query.getParameter(name);
+	}
+	public <T> Parameter<T> getParameter(String name, Class<T> type) {
+		return query.getParameter(name, type);
+	}
+	public Parameter<?> getParameter(int position) {
+		return query.getParameter(position);
+	}
+	public <T> Parameter<T> getParameter(int position, Class<T> type) {
+		return query.getParameter(position, type);
+	}
+	public boolean isBound(Parameter<?> param) {
+		return query.isBound(param);
+	}
+	public <T> T getParameterValue(Parameter<T> param) {
+		return query.getParameterValue(param);
+	}
+	public Object getParameterValue(String name) {
+		return query.getParameterValue(name);
+	}
+	public Object getParameterValue(int position) {
+		return query.getParameterValue(position);
+	}
+	public TypedQuery<X> setFlushMode(FlushModeType flushMode) {
+		query.setFlushMode(flushMode);
+		return this;
+	}
+	public FlushModeType getFlushMode() {
+		return query.getFlushMode();
+	}
+	public TypedQuery<X> setLockMode(LockModeType lockMode) {
+		query.setLockMode(lockMode);
+		return this;
+	}
+	public LockModeType getLockMode() {
+		return query.getLockMode();
+	}
+	public <T> T unwrap(Class<T> cls) {
+		return query.unwrap(cls);
+	}
+
+}
@@ -0,0 +1,629 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.par.GlobalThreadPool.PeriodicTask;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.codec.binary.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Document cache which persists its entries in append-only, memory-mapped
+ * segment files (no database required). An in-memory hash index maps each key
+ * to the location (segment, offset) of its most recent record; the index
+ * is sorted, which allows for efficient prefix queries over the keys.
+ *
+ * Superseded records are removed by a background compaction, which copies
+ * the live records of sparsely populated segments to the active segment and
+ * deletes the old segment files. On startup, the index is rebuilt by scanning
+ * all segments; every record carries a CRC32 checksum, so that a record which
+ * has been partially written before a crash is detected and ignored. Removal
+ * markers are carried forward by the compaction as long as older segments 
+ * exist, which may still contain a record of the removed key.
+ *
+ * Record layout: magic (int), crc (int), flags (byte), key length (int),
+ * value length (int), storeTime (long), firstStoreTime (long), key, value.
+ * Values are stored in their encoded (possibly compressed) form.
+ *
+ * @author Waldemar Hummer
+ */
+public class MappedFileDocumentCache implements IDocumentCache, Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1024*1024*64;
+	public static final long COMPACTION_INTERVAL_MS = 1000*60*5;
+	/** segments with a smaller ratio of live records are compacted */
+	public static final double COMPACTION_THRESHOLD = 0.5;
+	/** max. number of bytes copied by the compaction per acquisition of the write lock */
+	private static final int COMPACTION_BATCH_BYTES = 1024*1024;
+
+	private static final Logger logger = LogUtil.getLogger(MappedFileDocumentCache.class);
+	private static final int MAGIC = 0x44434143;
+	private static final int HEADER_SIZE = 33;
+	private static final byte FLAG_REMOVED = 0x01;
+	/** the value codec (see {@link CacheValueCodec}) is stored in the upper bits of the flags */
+	private static final int CODEC_SHIFT = 1;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static class Segment {
+		final long id;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		final AtomicLong liveBytes = new AtomicLong();
+		int position;
+
+		Segment(long id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private static class Location {
+		final Segment segment;
+		final int offset;
+		final int length;
+		final long storeTime;
+		final long firstStoreTime;
+
+		Location(Segment segment, int offset, int length, long storeTime, long firstStoreTime) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.storeTime = storeTime;
+			this.firstStoreTime = firstStoreTime;
+		}
+	}
+
+	private static interface RecordVisitor {
+		/** returns false to stop the scan before this record */
+		boolean visit(Segment segment, int offset, byte[] record, String key) throws IOException;
+	}
+
+	/** a record to be copied by the compaction */
+	private static class Move {
+		final String key;
+		final Location from;
+		final byte[] record;
+		final boolean removal;
+
+		Move(String key, Location from, byte[] record, boolean removal) {
+			this.key = key;
+			this.from = from;
+			this.record = record;
+			this.removal = removal;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final ConcurrentSkipListMap<String,Location> index = new ConcurrentSkipListMap<String,Location>();
+	/** locations of the most recent removal marker of each removed key */
+	private final ConcurrentMap<String,Location> removals = new ConcurrentHashMap<String,Location>();
+	private final CacheKeyIndex keys = new CacheKeyIndex(index.navigableKeySet());
+	private final SortedMap<Long,Segment> segments = new TreeMap<Long,Segment>();
+	/** read lock for reading records, write lock for appending records and removing segments */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final CacheMetrics metrics = new CacheMetrics();
+	private final CacheRevalidator revalidator = new CacheRevalidator(new CacheRevalidator.Storage() {
+		public CacheEntry lookup(String key) {
+			return MappedFileDocumentCache.this.lookup(key);
+		}
+		public CacheEntry store(CacheEntry entry) {
+			CacheEntry stored = put(entry, true);
+			return stored != null ? stored : entry;
+		}
+	}, metrics);
+	private final PeriodicTask compaction;
+	private final Thread shutdownHook = new Thread() {
+		public void run() {
+			flush();
+		}
+	};
+	private Segment active;
+
+	public MappedFileDocumentCache(String directory) throws IOException {
+		this(new File(directory), DEFAULT_SEGMENT_SIZE);
+	}
+
+	public MappedFileDocumentCache(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if(!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create cache directory " + directory);
+		}
+		recover();
+		metrics.setSizeGauge(new CacheMetrics.SizeGauge() {
+			public long getEntryCount() {
+				return index.size();
+			}
+			public long getWeightBytes() {
+				long bytes = 0;
+				lock.readLock().lock();
+				try {
+					for(Segment s : segments.values()) {
+						bytes += s.liveBytes.get();
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+				return bytes;
+			}
+		});
+		metrics.register(directory.getAbsolutePath());
+		compaction = GlobalThreadPool.executePeriodically(new Runnable() {
+			public void run() {
+				GlobalThreadPool.execute(new Runnable() {
+					public void run() {
+						compact();
+					}
+				});
+			}
+		}, COMPACTION_INTERVAL_MS);
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	public CacheEntry get(String key) {
+		CacheEntry existing = lookup(key);
+		if(!CacheRevalidator.isFresh(existing)) {
+			metrics.recordMiss();
+			return null;
+		}
+		metrics.recordHit(key);
+		return existing;
+	}
+
+	public CacheEntry get(String key, CacheLoader loader) throws Exception {
+		return revalidator.get(key, loader);
+	}
+
+	public CacheMetrics getMetrics() {
+		return metrics;
+	}
+
+	private CacheEntry lookup(String key) {
+		long start = System.nanoTime();
+		lock.readLock().lock();
+		try {
+			Location loc = index.get(key);
+			if(loc == null) {
+				return null;
+			}
+			if((System.currentTimeMillis() - loc.storeTime) >= CacheRevalidator.HARD_TTL_MS) {
+				if(index.remove(key, loc)) {
+					loc.segment.liveBytes.addAndGet(-loc.length);
+					metrics.recordEvictions(1);
+				}
+				return null;
+			}
+			byte[] record = read(loc.segment, loc.offset, loc.length);
+			ByteBuffer b = ByteBuffer.wrap(record);
+			int keyLength = b.getInt(9);
+			int valueLength = b.getInt(13);
+			CacheEntry e = new CacheEntry();
+			e.key = key;
+			e.valueCodec = (byte)(b.get(8) >> CODEC_SHIFT);
+			e.valueData = copy(record, HEADER_SIZE + keyLength, valueLength);
+			e.storeTime = loc.storeTime;
+			e.firstStoreTime = loc.firstStoreTime;
+			return e;
+		} finally {
+			lock.readLock().unlock();
+			metrics.recordLatency(CacheMetrics.LOOKUP_FILE, System.nanoTime() - start);
+		}
+	}
+
+	public CacheEntry put(String key, String value) {
+		return put(new CacheEntry(key, value));
+	}
+
+	/**
+	 * Stores the given entry, and returns it with the store times 
+	 * set, or null if the entry could not be written.
+	 */
+	public CacheEntry put(CacheEntry e) {
+		return put(e, false);
+	}
+
+	/**
+	 * @param keepStoreTime whether to keep the store time of the given entry (if set), 
+	 * e.g., for entries loaded from the cache of a peer node
+	 */
+	private CacheEntry put(CacheEntry e, boolean keepStoreTime) {
+		String key = e.key;
+		if(e.valueData == null) {
+			/* entries with a legacy (uncompressed) value */
+			e.setValue(e.getValue() == null ? "" : e.getValue());
+		}
+		long storeTime = System.currentTimeMillis();
+		long firstStoreTime = storeTime;
+		if(keepStoreTime && e.storeTime > 0) {
+			storeTime = e.storeTime;
+			firstStoreTime = e.firstStoreTime > 0 ? e.firstStoreTime : storeTime;
+		}
+		long start = System.nanoTime();
+		lock.writeLock().lock();
+		try {
+			Location old = index.get(key);
+			if(old != null) {
+				firstStoreTime = old.firstStoreTime;
+			}
+			byte codec = e.valueCodec == null ? CacheValueCodec.CODEC_RAW : e.valueCodec;
+			byte[] record = encode((byte)(codec << CODEC_SHIFT), 
+					StringUtils.getBytesUtf8(key), e.valueData, storeTime, firstStoreTime);
+			index.put(key, append(record, storeTime, firstStoreTime));
+			if(old != null) {
+				old.segment.liveBytes.addAndGet(-old.length);
+			}
+			release(removals.remove(key));
+		} catch (IOException e1) {
+			logger.error("Unable to store value for key '" + key + "'", e1);
+			return null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		metrics.recordLatency(CacheMetrics.STORE_FILE, System.nanoTime() - start);
+		metrics.recordPut(e.valueData.length);
+		e.storeTime = storeTime;
+		e.firstStoreTime = firstStoreTime;
+		return e;
+	}
+
+	/**
+	 * Appending a record is a memory copy, hence this
+	 * method simply delegates to {@link #put(CacheEntry)}.
+	 */
+	public void putWithoutWaiting(String key, String value) {
+		put(key, value);
+	}
+
+	public List<String> getKeys(String nameLike) {
+		return getKeys(nameLike, 0, Integer.MAX_VALUE);
+	}
+
+	public List<String> getKeys(String nameLike, int firstResult, int maxResults) {
+		return keys.getKeys(nameLike, firstResult, maxResults);
+	}
+
+	/**
+	 * Removes the entry with the given key, by appending a removal marker.
+	 */
+	public void remove(String key) {
+		lock.writeLock().lock();
+		try {
+			Location old = index.remove(key);
+			if(old != null) {
+				old.segment.liveBytes.addAndGet(-old.length);
+				Location marker = append(encode(FLAG_REMOVED, StringUtils.getBytesUtf8(key), new byte[0], 0, 0), 0, 0);
+				release(removals.put(key, marker));
+			}
+		} catch (IOException e) {
+			logger.error("Unable to remove value for key '" + key + "'", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces all changes of the active segment to be written to disk.
+	 */
+	public void flush() {
+		lock.writeLock().lock();
+		try {
+			if(active != null) {
+				active.buffer.force();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Stops the background compaction, forces all changes to disk and 
+	 * closes the segment files. The cache must not be used afterwards.
+	 */
+	public void close() {
+		compaction.cancel();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			/* JVM shutdown in progress */
+		}
+		metrics.unregister(directory.getAbsolutePath());
+		lock.writeLock().lock();
+		try {
+			if(active != null) {
+				active.buffer.force();
+			}
+			for(Segment s : segments.values()) {
+				try {
+					s.raf.close();
+				} catch (IOException e) {
+					logger.info("Unable to close cache segment " + s.file + ": " + e);
+				}
+			}
+			segments.clear();
+			index.clear();
+			removals.clear();
+			active = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copies the live records of all sealed segments whose ratio of live
+	 * records is below {@link #COMPACTION_THRESHOLD} to the active segment,
+	 * and deletes the compacted segment files. Records are read under the
+	 * read lock, and copied in batches under the write lock.
+	 */
+	public void compact() {
+		List<Segment> candidates = new ArrayList<Segment>();
+		lock.readLock().lock();
+		try {
+			for(Segment s : segments.values()) {
+				if(s != active && s.liveBytes.get() < COMPACTION_THRESHOLD * s.position) {
+					candidates.add(s);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		for(Segment s : candidates) {
+			try {
+				int moved = 0;
+				int offset = 0;
+				List<Move> batch;
+				do {
+					batch = new ArrayList<Move>();
+					lock.readLock().lock();
+					try {
+						if(!segments.containsKey(s.id)) {
+							break;
+						}
+						offset = scan(s, offset, collectMoves(batch));
+					} finally {
+						lock.readLock().unlock();
+					}
+					moved += move(s, batch);
+				} while(!batch.isEmpty());
+				lock.writeLock().lock();
+				try {
+					if(segments.remove(s.id) == null) {
+						continue;
+					}
+					s.raf.close();
+				} finally {
+					lock.writeLock().unlock();
+				}
+				if(!s.file.delete()) {
+					logger.warn("Unable to delete compacted cache segment " + s.file);
+				}
+				if(logger.isDebugEnabled()) logger.debug("Compacted cache segment " + s.file + ", moved " + moved + " records.");
+			} catch (IOException e) {
+				logger.warn("Unable to compact cache segment " + s.file, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns a visitor which collects the live records and removal
+	 * markers of a segment, up to {@link #COMPACTION_BATCH_BYTES}.
+	 */
+	private RecordVisitor collectMoves(final List<Move> batch) {
+		return new RecordVisitor() {
+			int bytes;
+			public boolean visit(Segment segment, int offset, byte[] record, String key) {
+				if(bytes >= COMPACTION_BATCH_BYTES) {
+					return false;
+				}
+				boolean removal = (record[8] & FLAG_REMOVED) != 0;
+				Location loc = removal ? removals.get(key) : index.get(key);
+				if(loc != null && loc.segment == segment && loc.offset == offset) {
+					batch.add(new Move(key, loc, record, removal));
+					bytes += record.length;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Appends the given records of the given segment to the active segment, unless they 
+	 * have been superseded in the meantime. Removal markers are dropped if no older 
+	 * segment exists, which may contain a record of the removed key.
+	 */
+	private int move(Segment from, List<Move> batch) throws IOException {
+		if(batch.isEmpty()) {
+			return 0;
+		}
+		int moved = 0;
+		lock.writeLock().lock();
+		try {
+			boolean olderSegments = !segments.headMap(from.id).isEmpty();
+			for(Move m : batch) {
+				ConcurrentMap<String,Location> locations = m.removal ? removals : index;
+				if(m.removal && !olderSegments) {
+					if(removals.remove(m.key, m.from)) {
+						release(m.from);
+					}
+					continue;
+				}
+				Location to = append(m.record, m.from.storeTime, m.from.firstStoreTime);
+				if(locations.replace(m.key, m.from, to)) {
+					release(m.from);
+					moved++;
+				} else {
+					release(to);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return moved;
+	}
+
+	private static void release(Location loc) {
+		if(loc != null) {
+			loc.segment.liveBytes.addAndGet(-loc.length);
+		}
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		SortedMap<Long,File> sorted = new TreeMap<Long,File>();
+		for(File f : files) {
+			String id = f.getName().substring(SEGMENT_PREFIX.length(),
+					f.getName().length() - SEGMENT_SUFFIX.length());
+			try {
+				sorted.put(Long.parseLong(id), f);
+			} catch (NumberFormatException e) {
+				logger.info("Ignoring unexpected file in cache directory: " + f);
+			}
+		}
+		for(Map.Entry<Long,File> e : sorted.entrySet()) {
+			Segment s = new Segment(e.getKey(), e.getValue(), (int)e.getValue().length());
+			s.position = scan(s, 0, new RecordVisitor() {
+				public boolean visit(Segment segment, int offset, byte[] record, String key) {
+					ByteBuffer b = ByteBuffer.wrap(record);
+					Location loc = new Location(segment, offset,
+							record.length, b.getLong(17), b.getLong(25));
+					segment.liveBytes.addAndGet(record.length);
+					if((b.get(8) & FLAG_REMOVED) != 0) {
+						release(index.remove(key));
+						release(removals.put(key, loc));
+					} else {
+						release(index.put(key, loc));
+						release(removals.remove(key));
+					}
+					return true;
+				}
+			});
+			segments.put(s.id, s);
+			active = s;
+		}
+		logger.info("Recovered " + index.size() + " cache entries from " +
+				segments.size() + " segment(s) in " + directory);
+	}
+
+	/**
+	 * Visits the valid records of the given segment, starting at the given offset,
+	 * and returns the position after the last visited record. Scanning stops at 
+	 * the first empty, truncated or corrupt record, or if the visitor declines a record.
+	 */
+	private int scan(Segment s, int offset, RecordVisitor visitor) throws IOException {
+		ByteBuffer b = s.buffer.duplicate();
+		int limit = b.capacity();
+		while(offset + HEADER_SIZE <= limit) {
+			if(b.getInt(offset) != MAGIC) {
+				break;
+			}
+			int keyLength = b.getInt(offset + 9);
+			int valueLength = b.getInt(offset + 13);
+			if(keyLength < 0 || valueLength < 0 ||
+					(long)offset + HEADER_SIZE + keyLength + valueLength > limit) {
+				logger.warn("Truncated record in cache segment " + s.file + " at offset " + offset);
+				break;
+			}
+			byte[] record = read(s, offset, HEADER_SIZE + keyLength + valueLength);
+			if(checksum(record) != b.getInt(offset + 4)) {
+				logger.warn("Corrupt record in cache segment " + s.file + " at offset " + offset);
+				break;
+			}
+			String key = StringUtils.newStringUtf8(copy(record, HEADER_SIZE, keyLength));
+			if(!visitor.visit(s, offset, record, key)) {
+				break;
+			}
+			offset += record.length;
+		}
+		return offset;
+	}
+
+	private Location append(byte[] record, long storeTime, long firstStoreTime) throws IOException {
+		if(active == null || active.position + record.length > active.buffer.capacity()) {
+			if(active != null) {
+				active.buffer.force();
+			}
+			long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+			File f = new File(directory, SEGMENT_PREFIX + String.format("%012d", id) + SEGMENT_SUFFIX);
+			active = new Segment(id, f, Math.max(segmentSize, record.length));
+			segments.put(id, active);
+		}
+		ByteBuffer b = active.buffer.duplicate();
+		b.position(active.position);
+		b.put(record);
+		Location loc = new Location(active, active.position, record.length, storeTime, firstStoreTime);
+		active.position += record.length;
+		active.liveBytes.addAndGet(record.length);
+		return loc;
+	}
+
+	private static byte[] encode(byte flags, byte[] key, byte[] value,
+			long storeTime, long firstStoreTime) {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+		b.putInt(MAGIC);
+		b.putInt(0);
+		b.put(flags);
+		b.putInt(key.length);
+		b.putInt(value.length);
+		b.putLong(storeTime);
+		b.putLong(firstStoreTime);
+		b.put(key);
+		b.put(value);
+		byte[] record = b.array();
+		b.putInt(4, checksum(record));
+		return record;
+	}
+
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, record.length - 8);
+		return (int)crc.getValue();
+	}
+
+	private static byte[] read(Segment s, int offset, int length) {
+		ByteBuffer b = s.buffer.duplicate();
+		b.position(offset);
+		byte[] result = new byte[length];
+		b.get(result);
+		return result;
+	}
+
+	private static byte[] copy(byte[] data, int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+
+}
@@ -0,0 +1,86 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.log.LogUtil;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reads the properties which persistence units define in their
+ * META-INF/persistence.xml. Properties passed to
+ * Persistence.createEntityManagerFactory(..) override these, hence
+ * defaults must only be passed for properties not defined by the unit.
+ *
+ * @author Waldemar Hummer
+ */
+public class PersistenceUnitProperties {
+
+	private static final String PERSISTENCE_XML = "META-INF/persistence.xml";
+
+	private static final Logger logger = LogUtil.getLogger(PersistenceUnitProperties.class);
+	private static final Map<String, Map<String, String>> cache = new HashMap<String, Map<String, String>>();
+
+	private PersistenceUnitProperties() {}
+
+	/**
+	 * Returns the properties defined for the given persistence unit
+	 * (empty, if the unit is not found in any persistence.xml).
+	 */
+	public static synchronized Map<String, String> get(String persistenceUnit) {
+		Map<String, String> props = cache.get(persistenceUnit);
+		if (props == null) {
+			props = Collections.unmodifiableMap(load(persistenceUnit));
+			cache.put(persistenceUnit, props);
+		}
+		return props;
+	}
+
+	private static Map<String, String> load(String persistenceUnit) {
+		Map<String, String> props = new HashMap<String, String>();
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null) {
+			loader = PersistenceUnitProperties.class.getClassLoader();
+		}
+		try {
+			Enumeration<URL> urls = loader.getResources(PERSISTENCE_XML);
+			while (urls.hasMoreElements()) {
+				URL url = urls.nextElement();
+				InputStream in = url.openStream();
+				Document doc;
+				try {
+					doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+				} finally {
+					in.close();
+				}
+				NodeList units = doc.getElementsByTagName("persistence-unit");
+				for (int i = 0; i < units.getLength(); i++) {
+					Element unit = (Element) units.item(i);
+					if (!persistenceUnit.equals(unit.getAttribute("name"))) {
+						continue;
+					}
+					NodeList list = unit.getElementsByTagName("property");
+					for (int j = 0; j < list.getLength(); j++) {
+						Element p = (Element) list.item(j);
+						props.put(p.getAttribute("name"), p.getAttribute("value"));
+					}
+					return props;
+				}
+			}
+		} catch (Exception e) {
+			logger.info("Unable to read properties of persistence unit " + persistenceUnit + ": " + e);
+		}
+		return props;
+	}
+
+}
@@ -0,0 +1,231 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.LimitedSizeHashMap;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.perf.Log2Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Metrics of the database operations executed via {@link EntityManagerWrapper}:
+ * latency histograms per entity manager operation (persist, merge, flush,
+ * commit, ...) and per query template, i.e., per query string with literals
+ * replaced by '?'. Queries which take longer than the configured threshold
+ * are logged (at WARN level) to the logger of this class.
+ *
+ * @author Waldemar Hummer
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+	/* names of entity manager operations */
+	public static final String PERSIST = "persist";
+	public static final String MERGE = "merge";
+	public static final String REMOVE = "remove";
+	public static final String FIND = "find";
+	public static final String FLUSH = "flush";
+	public static final String CREATE_QUERY = "createQuery";
+	public static final String COMMIT = "commit";
+	public static final String ROLLBACK = "rollback";
+	/** duration of transactions, from begin() to commit()/rollback() */
+	public static final String TRANSACTION = "transaction";
+
+	public static final boolean ENABLED =
+			Configuration.getBoolean(Configuration.PROP_DB_METRICS_ENABLED, true);
+
+	private static final int MAX_TEMPLATES = 1000;
+	private static final int MAX_TEMPLATE_LENGTH = 300;
+	private static final String OTHER_TEMPLATES = "<other>";
+	private static final Pattern STRING_LITERAL = Pattern.compile("'([^']|'')*'");
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private static final Logger logger = LogUtil.getLogger(QueryMetrics.class);
+	private static final QueryMetrics instance = new QueryMetrics();
+
+	/**
+	 * Statistics of one query template.
+	 */
+	public static class TemplateStats {
+		public final String template;
+		public final Log2Histogram latencies = new Log2Histogram();
+		public final Log2Histogram rows = new Log2Histogram();
+		private final AtomicLong totalMicros = new AtomicLong();
+
+		TemplateStats(String template) {
+			this.template = template;
+		}
+		public long getTotalMicros() {
+			return totalMicros.get();
+		}
+		@Override
+		public String toString() {
+			return "total(us)=" + getTotalMicros() + ", latency(us): " + latencies + 
+					", rows: mean=" + Math.round(rows.getMean()) + ", max=" + rows.getMax() + 
+					" - " + template;
+		}
+	}
+
+	private final ConcurrentMap<String,Log2Histogram> operations = new ConcurrentHashMap<String,Log2Histogram>();
+	private final ConcurrentMap<String,TemplateStats> templates = new ConcurrentHashMap<String,TemplateStats>();
+	/** templates by query string, to avoid repeated pattern matching */
+	private final Map<String,String> templateCache = 
+			Collections.synchronizedMap(new LimitedSizeHashMap<String,String>(MAX_TEMPLATES));
+	private final AtomicLong slowQueries = new AtomicLong();
+	private volatile long slowQueryThresholdMS =
+			Configuration.getLong(Configuration.PROP_DB_SLOW_QUERY_MS, 1000L);
+
+	private QueryMetrics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("io.hummer.util:type=QueryMetrics");
+			if(!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (Exception e) {
+			logger.info("Unable to register query metrics MBean: " + e);
+		}
+	}
+
+	public static QueryMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the template of the given query, with literals 
+	 * replaced by '?' and whitespace collapsed.
+	 */
+	public String getTemplate(String query) {
+		String t = templateCache.get(query);
+		if(t == null) {
+			t = toTemplate(query);
+			templateCache.put(query, t);
+		}
+		return t;
+	}
+
+	public static String toTemplate(String query) {
+		String t = STRING_LITERAL.matcher(query).replaceAll("?");
+		t = NUMBER_LITERAL.matcher(t).replaceAll("?");
+		t = WHITESPACE.matcher(t).replaceAll(" ").trim();
+		if(t.length() > MAX_TEMPLATE_LENGTH) {
+			t = t.substring(0, MAX_TEMPLATE_LENGTH) + "...";
+		}
+		return t;
+	}
+
+	public void recordOperation(String operation, long nanos) {
+		Log2Histogram h = operations.get(operation);
+		if(h == null) {
+			Log2Histogram newHistogram = new Log2Histogram();
+			h = operations.putIfAbsent(operation, newHistogram);
+			if(h == null) {
+				h = newHistogram;
+			}
+		}
+		h.record(nanos / 1000);
+	}
+
+	/**
+	 * Records the execution of a query with the given template.
+	 * @param rows number of result rows or updated rows, or -1 if unknown
+	 */
+	public void recordQuery(String template, String query, long nanos, int rows) {
+		TemplateStats s = templates.get(template);
+		if(s == null) {
+			String key = templates.size() >= MAX_TEMPLATES ? OTHER_TEMPLATES : template;
+			TemplateStats newStats = new TemplateStats(key);
+			s = templates.putIfAbsent(key, newStats);
+			if(s == null) {
+				s = newStats;
+			}
+		}
+		long micros = nanos / 1000;
+		s.latencies.record(micros);
+		s.totalMicros.addAndGet(micros);
+		if(rows >= 0) {
+			s.rows.record(rows);
+		}
+		long threshold = slowQueryThresholdMS;
+		if(threshold > 0 && micros >= threshold * 1000) {
+			slowQueries.incrementAndGet();
+			logger.warn("Slow query (" + (micros / 1000) + "ms" + 
+					(rows >= 0 ? ", " + rows + " rows" : "") + "): " + query);
+		}
+	}
+
+	public Log2Histogram getOperationLatency(String operation) {
+		return operations.get(operation);
+	}
+
+	/**
+	 * Returns the statistics of all query templates, 
+	 * ordered by total execution time (descending).
+	 */
+	public List<TemplateStats> getTemplateStats() {
+		List<TemplateStats> result = new ArrayList<TemplateStats>(templates.values());
+		Collections.sort(result, new Comparator<TemplateStats>() {
+			public int compare(TemplateStats o1, TemplateStats o2) {
+				return Long.valueOf(o2.getTotalMicros()).compareTo(o1.getTotalMicros());
+			}
+		});
+		return result;
+	}
+
+	public String[] getOperationLatencies() {
+		List<String> result = new ArrayList<String>();
+		for(Map.Entry<String,Log2Histogram> e : new TreeMap<String,Log2Histogram>(operations).entrySet()) {
+			result.add(e.getKey() + ": " + e.getValue());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	public String[] getQueryTemplates() {
+		List<String> result = new ArrayList<String>();
+		for(TemplateStats s : getTemplateStats()) {
+			result.add(s.toString());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	public String[] getConnectionPools() {
+		List<String> result = new ArrayList<String>();
+		for(Map.Entry<String,Map<String,Object>> e : ConnectionPool.getStatistics().entrySet()) {
+			result.add(e.getKey() + ": " + e.getValue());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	public long getSlowQueries() {
+		return slowQueries.get();
+	}
+	public long getSlowQueryThresholdMS() {
+		return slowQueryThresholdMS;
+	}
+	/** a threshold <= 0 disables the slow query log */
+	public void setSlowQueryThresholdMS(long thresholdMS) {
+		this.slowQueryThresholdMS = thresholdMS;
+	}
+
+	public void reset() {
+		operations.clear();
+		templates.clear();
+		slowQueries.set(0);
+	}
+
+}
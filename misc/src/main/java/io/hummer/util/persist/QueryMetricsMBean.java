@@ -0,0 +1,23 @@
+package io.hummer.util.persist;
+
+/**
+ * JMX management interface of {@link QueryMetrics}. 
+ * Latencies are given in microseconds.
+ *
+ * @author Waldemar Hummer
+ */
+public interface QueryMetricsMBean {
+
+	/** latency histograms of entity manager operations, one line per operation */
+	String[] getOperationLatencies();
+	/** query templates, ordered by total execution time */
+	String[] getQueryTemplates();
+	/** statistics of the JDBC connection pools */
+	String[] getConnectionPools();
+	long getSlowQueries();
+	long getSlowQueryThresholdMS();
+	void setSlowQueryThresholdMS(long thresholdMS);
+
+	void reset();
+
+}
@@ -0,0 +1,107 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.coll.LimitedSizeHashMap;
+import io.hummer.util.perf.MemoryPressureMonitor;
+import io.hummer.util.persist.AbstractGenericDAO.QuerySpec;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of query results, keyed by {@link QuerySpec}. Each
+ * result is tagged with the entity class it has been queried for, and is
+ * invalidated if an entity of this class (or of a subclass) is written.
+ *
+ * To avoid caching results which have been read concurrently to a write,
+ * a result is only stored if no invalidation has happened since the query
+ * was started (see {@link #getGeneration()}).
+ *
+ * @author Waldemar Hummer
+ */
+public class QueryResultCache implements MemoryPressureMonitor.Shrinkable {
+
+	private static class CachedResult {
+		final Class<?> entityClass;
+		final Object result;
+		CachedResult(Class<?> entityClass, Object result) {
+			this.entityClass = entityClass;
+			this.result = result;
+		}
+	}
+
+	/** null values are cached as well, hence we need a marker for cache misses */
+	public static final Object MISS = new Object();
+
+	private final Map<QuerySpec, CachedResult> results;
+	private final AtomicLong generation = new AtomicLong();
+
+	public QueryResultCache(int maxSize) {
+		results = new LimitedSizeHashMap<QuerySpec, CachedResult>(maxSize);
+	}
+
+	/**
+	 * Returns the cached result, or {@link #MISS}.
+	 */
+	public Object get(QuerySpec query) {
+		synchronized (results) {
+			CachedResult r = results.get(query);
+			if(r == null) {
+				return MISS;
+			}
+			/* re-insert, to keep frequently used results in the cache */
+			results.put(query, r);
+			return r.result;
+		}
+	}
+
+	/**
+	 * Stores the result of the given query, unless the cache has been
+	 * invalidated since the given generation.
+	 */
+	public void put(QuerySpec query, Class<?> entityClass, Object result, long generation) {
+		synchronized (results) {
+			if(this.generation.get() == generation) {
+				results.put(query, new CachedResult(entityClass, result));
+			}
+		}
+	}
+
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Invalidates all results which may contain entities of the given class.
+	 */
+	public void invalidate(Class<?> writtenClass) {
+		synchronized (results) {
+			generation.incrementAndGet();
+			for(Iterator<CachedResult> i = results.values().iterator(); i.hasNext(); ) {
+				if(i.next().entityClass.isAssignableFrom(writtenClass)) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (results) {
+			generation.incrementAndGet();
+			results.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (results) {
+			return results.size();
+		}
+	}
+
+	public int shrink(double fraction) {
+		synchronized (results) {
+			return MemoryPressureMonitor.removeFraction(results, fraction);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.coll.CloseableIterator;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.ScrollableResults;
+
+/**
+ * Iterates over the rows of a forward-only database cursor. Rows are 
+ * returned as lists of column values, or, unless tuples are requested, 
+ * rows with a single column as the column value (e.g., an entity). 
+ * The persistence context is cleared every clearInterval rows, hence entities which have been 
+ * returned before are detached and can be garbage collected. The 
+ * cursor and its entity manager are closed when the iteration is 
+ * complete, or when {@link #close()} is called. If a query string is 
+ * given, the query is recorded in the {@link QueryMetrics} on close, with 
+ * the time spent in the database (executing the query and fetching rows, 
+ * excluding the processing of the rows by the caller) and the number of rows.
+ * 
+ * @author Waldemar Hummer
+ */
+public class ScrollableResultsIterator<T> implements CloseableIterator<T> {
+
+	private final EntityManager em;
+	private final ScrollableResults results;
+	private final int clearInterval;
+	private final boolean tuples;
+	private Boolean hasNext;
+	private long count;
+	private boolean closed;
+	/** query to be recorded in the {@link QueryMetrics}, or null */
+	private final String query;
+	private long nanos;
+
+	public ScrollableResultsIterator(EntityManager em, ScrollableResults results, 
+			int clearInterval, boolean tuples) {
+		this(em, results, clearInterval, tuples, null, 0);
+	}
+
+	/**
+	 * @param query the executed query, to be recorded in the {@link QueryMetrics}
+	 * @param executionNanos the time it took to execute the query
+	 */
+	public ScrollableResultsIterator(EntityManager em, ScrollableResults results, 
+			int clearInterval, boolean tuples, String query, long executionNanos) {
+		this.em = em;
+		this.results = results;
+		this.clearInterval = Math.max(1, clearInterval);
+		this.tuples = tuples;
+		this.query = query;
+		this.nanos = executionNanos;
+	}
+
+	public boolean hasNext() {
+		if (hasNext == null) {
+			if (closed) {
+				return false;
+			}
+			if (count > 0 && count % clearInterval == 0) {
+				em.clear();
+			}
+			if (query != null) {
+				long start = System.nanoTime();
+				hasNext = results.next();
+				nanos += System.nanoTime() - start;
+			} else {
+				hasNext = results.next();
+			}
+			if (!hasNext) {
+				close();
+			}
+		}
+		return hasNext;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		hasNext = null;
+		count++;
+		Object[] row = results.get();
+		if (row.length == 1 && !tuples) {
+			return (T) row[0];
+		}
+		return (T) Arrays.asList(row);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		hasNext = false;
+		try {
+			results.close();
+		} finally {
+			em.close();
+			if (query != null) {
+				QueryMetrics metrics = QueryMetrics.getInstance();
+				metrics.recordQuery(metrics.getTemplate(query), query, nanos, 
+						(int) Math.min(Integer.MAX_VALUE, count));
+			}
+		}
+	}
+
+}
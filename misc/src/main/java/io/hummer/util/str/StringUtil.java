@@ -119,7 +119,31 @@ public class StringUtil {
 	public boolean isMD5(String test) {
 		return test.matches("[a-fA-F0-9]{32}");
 	}
-	
+
+	/**
+	 * Converts an SQL LIKE pattern (with wildcards '%' and '_')
+	 * into an equivalent regular expression.
+	 */
+	public String likePatternToRegex(String likePattern) {
+		StringBuilder b = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for(char c : likePattern.toCharArray()) {
+			if(c == '%' || c == '_') {
+				if(literal.length() > 0) {
+					b.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				b.append(c == '%' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if(literal.length() > 0) {
+			b.append(Pattern.quote(literal.toString()));
+		}
+		return b.toString();
+	}
+
 	public String trimForOutput(String str, int maxLength) {
 		if(str == null)
 			return null;
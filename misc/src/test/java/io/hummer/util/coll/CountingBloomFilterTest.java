@@ -0,0 +1,46 @@
+package io.hummer.util.coll;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CountingBloomFilterTest {
+
+	@Test
+	public void testAddRemove() {
+		CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		Random r = new Random(42);
+		long[] hashes = new long[1000];
+		for(int i = 0; i < hashes.length; i ++) {
+			hashes[i] = r.nextLong();
+			filter.add(hashes[i]);
+		}
+		for(long h : hashes) {
+			assertTrue(filter.mightContain(h));
+		}
+		for(int i = 0; i < hashes.length; i += 2) {
+			filter.remove(hashes[i]);
+		}
+		for(int i = 1; i < hashes.length; i += 2) {
+			assertTrue(filter.mightContain(hashes[i]));
+		}
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+		Random r = new Random(42);
+		for(int i = 0; i < 10000; i ++) {
+			filter.add(r.nextLong());
+		}
+		int positives = 0;
+		for(int i = 0; i < 10000; i ++) {
+			if(filter.mightContain(r.nextLong())) {
+				positives ++;
+			}
+		}
+		assertTrue("false positives: " + positives, positives < 10000 * 0.02);
+	}
+
+}
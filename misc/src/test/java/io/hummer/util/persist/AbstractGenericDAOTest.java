@@ -0,0 +1,90 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.persist.AbstractGenericDAO.EntityManagerCallback;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AbstractGenericDAOTest {
+
+	private static final String PRIMARY = "TestPrimary";
+
+	@Test
+	public void testNoStaleReads() {
+		AbstractGenericDAO dao = AbstractGenericDAO.get(PRIMARY);
+		CacheEntry entry = new CacheEntry("stale1", "value1");
+		entry.keyHash = CacheEntry.hashKey(entry.key);
+		entry.storeTime = 1;
+		dao.save(entry);
+		Map<String, Object> ids = Collections.<String, Object>singletonMap("keyHash", entry.keyHash);
+		assertEquals(1, dao.load(CacheEntry.class, ids).storeTime);
+
+		/* update the row via another entity manager */
+		EntityManager em = dao.openEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.createQuery("update CacheEntry e set e.storeTime=2 where e.keyHash=:hash")
+					.setParameter("hash", entry.keyHash).executeUpdate();
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		assertEquals(2, dao.load(CacheEntry.class, ids).storeTime);
+	}
+
+	@Test
+	public void testScrolledQueryMetrics() {
+		AbstractGenericDAO dao = AbstractGenericDAO.get(PRIMARY);
+		for(int i = 0; i < 3; i ++) {
+			CacheEntry entry = new CacheEntry("metrics" + i, "value" + i);
+			entry.keyHash = CacheEntry.hashKey(entry.key);
+			dao.save(entry);
+		}
+		String query = "select e.key, e.storeTime from CacheEntry e where e.key like 'metrics%'";
+		assertEquals(3, dao.executeColumnarQuery(query, null, false).getRowCount());
+
+		String template = QueryMetrics.toTemplate(query);
+		for(QueryMetrics.TemplateStats stats : QueryMetrics.getInstance().getTemplateStats()) {
+			if(stats.template.equals(template)) {
+				assertEquals(1, stats.latencies.getCount());
+				assertEquals(3, (long)stats.rows.getMean());
+				return;
+			}
+		}
+		fail("Query not recorded: " + template);
+	}
+
+	@Test
+	public void testInvalidateResultsOnCommit() {
+		final AbstractGenericDAO dao = AbstractGenericDAO.get(PRIMARY);
+		dao.setResultCacheSize(100);
+		try {
+			CacheEntry entry = new CacheEntry("cached1", "value1");
+			entry.keyHash = CacheEntry.hashKey(entry.key);
+			dao.save(entry);
+			String where = "keyHash=:hash";
+			Map<String, Object> params = Collections.<String, Object>singletonMap("hash", entry.keyHash);
+			assertEquals(1, dao.loadAsList(CacheEntry.class, where, params).size());
+
+			/* a unit of work which commits its own transaction */
+			dao.execute(new EntityManagerCallback<Void>() {
+				public Void execute(EntityManager em) {
+					em.getTransaction().begin();
+					em.createQuery("delete from CacheEntry e where e.key='cached1'").executeUpdate();
+					em.getTransaction().commit();
+					return null;
+				}
+			});
+			assertEquals(0, dao.loadAsList(CacheEntry.class, where, params).size());
+		} finally {
+			dao.setResultCacheSize(0);
+		}
+	}
+
+}
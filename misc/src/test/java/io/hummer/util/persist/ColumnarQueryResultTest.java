@@ -0,0 +1,78 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.persist.ColumnarQueryResult.ColumnType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ColumnarQueryResultTest {
+
+	@Test
+	public void testWidening() {
+		ColumnarQueryResult r = new ColumnarQueryResult(Arrays.asList("a", "b", "c", "d"));
+		r.addRow(Arrays.<Object>asList(1, 1, 1, new BigDecimal("12345678901234567.89")));
+		r.addRow(Arrays.<Object>asList(2, 3000000000L, "x", new BigDecimal("0.1")));
+		r.addRow(Arrays.<Object>asList(3, 2.5, 3, null));
+		assertEquals(ColumnType.INT, r.getColumnType(0));
+		assertEquals(ColumnType.DOUBLE, r.getColumnType(1));
+		assertEquals(ColumnType.OBJECT, r.getColumnType(2));
+		assertEquals(ColumnType.OBJECT, r.getColumnType(3));
+		assertEquals(3000000000L, r.getLong(1, 1));
+		assertEquals(1, r.getObject(0, 2));
+		assertEquals("x", r.getString(1, 2));
+		assertEquals(new BigDecimal("12345678901234567.89"), r.getObject(0, 3));
+	}
+
+	@Test
+	public void testNulls() {
+		ColumnarQueryResult r = new ColumnarQueryResult(Arrays.asList("a", "b"));
+		r.addRow(Arrays.<Object>asList(null, null));
+		r.addRow(Arrays.<Object>asList(5L, null));
+		assertTrue(r.isNull(0, 0));
+		assertFalse(r.isNull(1, 0));
+		assertNull(r.getObject(0, 0));
+		assertNull(r.getColumnType(1));
+		assertArrayEquals(new double[] {5}, r.getDoubles(0), 0);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		char[] chars = new char[70000];
+		Arrays.fill(chars, 'ä');
+		String large = new String(chars);
+		ColumnarQueryResult r = new ColumnarQueryResult(Arrays.asList("id", "value", "amount"));
+		r.addRow(Arrays.<Object>asList(1L, large, new BigDecimal("1.10")));
+		r.addRow(Arrays.<Object>asList(2L, "a,\"b\"", null));
+		r.addRow(Arrays.<Object>asList(null, null, new BigDecimal("2")));
+
+		StringWriter csv = new StringWriter();
+		r.writeCSV(csv);
+		String[] lines = csv.toString().split("\n");
+		assertEquals("id,value,amount", lines[0]);
+		assertEquals("2,\"a,\"\"b\"\"\",", lines[2]);
+		assertEquals(",,2", lines[3]);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		r.writeBinary(new DataOutputStream(bos));
+		ColumnarQueryResult r2 = ColumnarQueryResult.readBinary(
+				new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+		assertEquals(r.getColumnNames(), r2.getColumnNames());
+		assertEquals(3, r2.getRowCount());
+		assertEquals(2L, r2.getLong(1, 0));
+		assertTrue(r2.isNull(2, 0));
+		assertEquals(large, r2.getString(0, 1));
+		assertEquals("a,\"b\"", r2.getString(1, 1));
+		assertTrue(r2.isNull(2, 1));
+		assertEquals("1.10", r2.getString(0, 2));
+		assertTrue(r2.isNull(1, 2));
+	}
+
+}
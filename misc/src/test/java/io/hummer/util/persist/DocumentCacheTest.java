@@ -0,0 +1,52 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.persist.IDocumentCache.DocumentCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DocumentCacheTest {
+
+	private static final String PRIMARY = "TestPrimary";
+
+	@Test
+	public void testPagingWithSharedPrefix() {
+		StringBuilder b = new StringBuilder("http://paging.example.com/");
+		while(b.length() <= IDocumentCache.CacheEntry.KEY_PREFIX_LENGTH) {
+			b.append("x");
+		}
+		String prefix = b.toString();
+		DocumentCache cache = new DocumentCache(PRIMARY);
+		List<String> expected = new ArrayList<String>();
+		/* insert in reverse key order, so that ID order differs from key order */
+		for(int i = 9; i >= 0; i --) {
+			cache.put(prefix + i, "value" + i);
+			expected.add(0, prefix + i);
+		}
+		cache.flush();
+
+		List<String> pages = new ArrayList<String>();
+		for(int first = 0; first < expected.size(); first += 3) {
+			pages.addAll(cache.getKeys("http://paging.example.com/%", first, 3));
+		}
+		assertEquals(expected, pages);
+	}
+
+	@Test
+	public void testRemoveAfterMigration() throws Exception {
+		for(int i = 0; i < 100 && !CacheKeyMigration.isComplete(PRIMARY); i ++) {
+			Thread.sleep(50);
+		}
+		assertTrue(CacheKeyMigration.isComplete(PRIMARY));
+		DocumentCache cache = new DocumentCache(PRIMARY);
+		cache.put("http://remove.example.com/", "value");
+		cache.flush();
+		assertEquals("value", cache.get("http://remove.example.com/").getValue());
+		cache.remove("http://remove.example.com/");
+		assertNull(cache.get("http://remove.example.com/"));
+	}
+
+}
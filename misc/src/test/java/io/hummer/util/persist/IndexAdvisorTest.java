@@ -0,0 +1,52 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+import io.hummer.util.persist.IndexAdvisor.MissingIndex;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IndexAdvisorTest {
+
+	private static final String PRIMARY = "TestPrimary";
+	private static final int QUERIES = 5;
+
+	private final IndexAdvisor advisor = IndexAdvisor.getInstance();
+
+	@Before
+	public void setUp() {
+		advisor.reset();
+		IndexAdvisor.setEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		IndexAdvisor.setEnabled(false);
+		advisor.reset();
+	}
+
+	@Test
+	public void testMissingIndexes() {
+		AbstractGenericDAO dao = AbstractGenericDAO.get(PRIMARY);
+		for(int i = 0; i < QUERIES; i ++) {
+			/* keyHash has a unique index, storeTime has none (no rows have negative values) */
+			dao.load(CacheEntry.class, Collections.<String, Object>singletonMap("keyHash", (long)-1 - i));
+			dao.load(CacheEntry.class, Collections.<String, Object>singletonMap("storeTime", (long)-1 - i));
+		}
+		assertTrue(advisor.getMissingIndexes(dao, QUERIES + 1).isEmpty());
+
+		List<MissingIndex> missing = advisor.getMissingIndexes(dao, QUERIES);
+		assertEquals(1, missing.size());
+		assertEquals(Collections.singletonList("storeTime"), missing.get(0).columns);
+		assertEquals(QUERIES, missing.get(0).latencies.getCount());
+
+		assertEquals(1, advisor.createMissingIndexes(dao, QUERIES));
+		assertTrue(advisor.getMissingIndexes(dao, QUERIES).isEmpty());
+	}
+
+}
@@ -0,0 +1,124 @@
+package io.hummer.util.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MappedFileDocumentCacheTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	private File dir;
+	private MappedFileDocumentCache cache;
+	private final Random random = new Random(42);
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("mappedcache", "");
+		dir.delete();
+		cache = open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cache.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		cache.put("a", "value-a");
+		cache.put("b", "value-b");
+		cache.put("a", "value-a2");
+		cache.remove("b");
+		reopen();
+		assertEquals(1, cache.size());
+		assertEquals("value-a2", cache.get("a").getValue());
+		assertNull(cache.get("b"));
+	}
+
+	@Test
+	public void testRemovalSurvivesCompaction() throws IOException {
+		/* segment 1: "x" and other live entries */
+		cache.put("x", randomValue());
+		int i = 0;
+		while(numSegments() < 2) {
+			cache.put("k" + (i++), randomValue());
+		}
+		/* segment 2: removal marker of "x", and entries which are superseded below */
+		cache.remove("x");
+		int j = 0;
+		while(numSegments() < 3) {
+			cache.put("tmp" + (j++), randomValue());
+		}
+		for(int k = 0; k < j; k ++) {
+			cache.put("tmp" + k, "final" + k);
+		}
+		cache.compact();
+		assertFalse(segmentFile(2).exists());
+		assertTrue(segmentFile(1).exists());
+
+		reopen();
+		assertNull(cache.get("x"));
+		assertEquals(i + j, cache.size());
+		assertEquals("final0", cache.get("tmp0").getValue());
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		cache.put("a", "value-a");
+		cache.put("torn-key", "value-torn");
+		cache.close();
+
+		/* corrupt the value of the last record, as if it has been partially written */
+		RandomAccessFile f = new RandomAccessFile(segmentFile(1), "rw");
+		byte[] data = new byte[(int)f.length()];
+		f.readFully(data);
+		int pos = new String(data, "ISO-8859-1").indexOf("torn-key") + "torn-key".length();
+		f.seek(pos);
+		f.write(data[pos] ^ 0xFF);
+		f.close();
+
+		cache = open();
+		assertEquals("value-a", cache.get("a").getValue());
+		assertNull(cache.get("torn-key"));
+		/* the corrupt record is overwritten by subsequent records */
+		cache.put("b", "value-b");
+		reopen();
+		assertEquals(2, cache.size());
+		assertEquals("value-b", cache.get("b").getValue());
+	}
+
+	private MappedFileDocumentCache open() throws IOException {
+		return new MappedFileDocumentCache(dir, SEGMENT_SIZE);
+	}
+
+	private void reopen() throws IOException {
+		cache.close();
+		cache = open();
+	}
+
+	private int numSegments() {
+		return dir.list().length;
+	}
+
+	private File segmentFile(long id) {
+		return new File(dir, "segment-" + String.format("%012d", id) + ".log");
+	}
+
+	private String randomValue() {
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < 200; i ++) {
+			b.append((char)('a' + random.nextInt(26)));
+		}
+		return b.toString();
+	}
+
+}
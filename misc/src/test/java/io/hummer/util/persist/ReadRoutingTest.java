@@ -0,0 +1,60 @@
+package io.hummer.util.persist;
+
+import io.hummer.util.persist.AbstractGenericDAO.EntityManagerCallback;
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReadRoutingTest {
+
+	private static final String PRIMARY = "TestPrimary";
+	private static final String REPLICA = "TestReplica";
+
+	@After
+	public void tearDown() {
+		AbstractGenericDAO.setReadReplicas(PRIMARY);
+		AbstractGenericDAO.setOwnWritesWindow(1000);
+	}
+
+	@Test
+	public void testReadOwnWrites() throws Exception {
+		AbstractGenericDAO.setReadReplicas(PRIMARY, REPLICA);
+		AbstractGenericDAO.setOwnWritesWindow(200);
+		AbstractGenericDAO dao = AbstractGenericDAO.get(PRIMARY);
+		assertEquals(REPLICA, dao.forReads().getPersistenceUnitName());
+
+		CacheEntry entry = new CacheEntry("key1", "value1");
+		entry.keyHash = CacheEntry.hashKey(entry.key);
+		dao.save(entry);
+		assertSame(dao, dao.forReads());
+		assertNotNull(loadByKey(dao, "key1"));
+
+		Thread.sleep(300);
+		/* the replica database is not replicated in this test */
+		assertEquals(REPLICA, dao.forReads().getPersistenceUnitName());
+		assertNull(loadByKey(dao, "key1"));
+	}
+
+	@Test
+	public void testNoReplicas() {
+		AbstractGenericDAO dao = AbstractGenericDAO.get(PRIMARY);
+		assertSame(dao, dao.forReads());
+	}
+
+	private CacheEntry loadByKey(AbstractGenericDAO dao, final String key) {
+		return dao.executeRead(new EntityManagerCallback<CacheEntry>() {
+			public CacheEntry execute(EntityManager em) {
+				List<?> list = em.createQuery("from CacheEntry e where e.key=:key")
+						.setParameter("key", key).getResultList();
+				return list.isEmpty() ? null : (CacheEntry) list.get(0);
+			}
+		});
+	}
+
+}
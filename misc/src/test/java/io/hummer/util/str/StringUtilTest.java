@@ -14,4 +14,16 @@ public class StringUtilTest {
 		assertTrue(str.isMD5(	"79054025255fb1a26e4bc422aef54eb4"));
 	}
 
+	@Test
+	public void testLikePatternToRegex() {
+		StringUtil str = new StringUtil();
+		String regex = str.likePatternToRegex("http://a.b/%?x=_");
+		assertTrue("http://a.b/path/q?x=1".matches(regex));
+		assertTrue("http://a.b/?x=2".matches(regex));
+		assertFalse("http://aXb/q?x=1".matches(regex));
+		assertFalse("http://a.b/q?x=12".matches(regex));
+		assertTrue("(a+b)".matches(str.likePatternToRegex("(a+b)")));
+		assertFalse("aab".matches(str.likePatternToRegex("a+b")));
+	}
+
 }
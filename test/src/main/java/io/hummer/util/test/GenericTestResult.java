@@ -22,6 +22,7 @@ import io.hummer.util.coll.CollectionsUtil;
 import io.hummer.util.cp.ClasspathUtil;
 import io.hummer.util.io.IOUtil;
 import io.hummer.util.log.LogUtil;
+import io.hummer.util.persist.ColumnarQueryResult;
 import io.hummer.util.xml.XMLUtil;
 
 import java.io.BufferedWriter;
@@ -209,6 +210,35 @@ public class GenericTestResult {
 		return i;
 	}
 	
+	/**
+	 * Adds one iteration per row of the given query result, with one entry
+	 * per given column (or per numeric value of any column, if no names 
+	 * are given). Null values are skipped.
+	 */
+	public void addIterations(ColumnarQueryResult result, String ... columnNames) {
+		boolean allColumns = columnNames.length == 0;
+		List<String> names = columnNames.length > 0 ? 
+				Arrays.asList(columnNames) : result.getColumnNames();
+		int[] columns = new int[names.size()];
+		for(int i = 0; i < columns.length; i ++) {
+			columns[i] = result.getColumnIndex(names.get(i));
+		}
+		ColumnarQueryResult.Cursor c = result.cursor();
+		while(c.next()) {
+			IterationResult iteration = newIteration();
+			for(int i = 0; i < columns.length; i ++) {
+				if(c.isNull(columns[i])) {
+					continue;
+				}
+				if(!allColumns || result.isNumeric(columns[i])) {
+					iteration.addEntry(names.get(i), c.getDouble(columns[i]));
+				} else if(c.getObject(columns[i]) instanceof Number) {
+					iteration.addEntry(names.get(i), ((Number)c.getObject(columns[i])).doubleValue());
+				}
+			}
+		}
+	}
+
 	public double getStdDeviation(String valueName) {
 		List<Double> values = getValues(valueName);
 		return getStdDeviation(values);
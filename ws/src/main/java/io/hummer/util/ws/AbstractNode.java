@@ -18,10 +18,12 @@
  */
 package io.hummer.util.ws;
 
+import io.hummer.util.Configuration;
 import io.hummer.util.coll.CollectionsUtil;
 import io.hummer.util.log.LogUtil;
 import io.hummer.util.net.NetUtil;
 import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.IDocumentCache;
 import io.hummer.util.str.StringUtil;
 import io.hummer.util.xml.XMLUtil;
 
@@ -102,6 +104,8 @@ public abstract class AbstractNode implements IAbstractNode {
 	public static final Map<String,AbstractNode> deployedNodes = new HashMap<String, AbstractNode>();
 	public static final Map<Integer, Server> servers = new HashMap<Integer, Server>();
 	public static final Map<Integer,JettyHttpServer> httpServers = new HashMap<Integer, JettyHttpServer>();
+	/** peer caches (see {@link PeerDocumentCache}), one per deployed port */
+	private static final Map<Integer,PeerDocumentCache> peerCaches = new HashMap<Integer, PeerDocumentCache>();
 	private static final Logger logger = LogUtil.getLogger(AbstractNode.class);
 	private static final String SYSPROP_HTTP_SERVER_PROVIDER_CLASS = "com.sun.net.httpserver.HttpServerProvider";
 
@@ -224,6 +228,11 @@ public abstract class AbstractNode implements IAbstractNode {
 				server.start();
 		}
 		
+		if(service instanceof AbstractNode && 
+				Configuration.getBoolean(Configuration.PROP_CACHE_PEER_ENABLED, false)) {
+			deployPeerCache(httpServer, u);
+		}
+
 		JettyHttpContext wsContext1 = (JettyHttpContext)httpServer.createContext(u.getPath());
 		Endpoint endpoint = Endpoint.create(service);
 		if(service instanceof AbstractNode) {
@@ -353,6 +362,45 @@ public abstract class AbstractNode implements IAbstractNode {
 
 	}
 
+	private static void deployPeerCache(JettyHttpServer httpServer, URL u) {
+		synchronized (peerCaches) {
+			if(peerCaches.containsKey(u.getPort())) {
+				return;
+			}
+			PeerDocumentCache cache = new PeerDocumentCache(
+					new IDocumentCache.DocumentCache(), netUtil.getUrlBeforePath(u));
+			JettyHttpContext context = (JettyHttpContext)httpServer.createContext(PeerDocumentCache.CONTEXT_PATH);
+			context.setHandler(cache.createHandler());
+			String nodes = Configuration.getString(Configuration.PROP_CACHE_PEER_NODES);
+			if(!strUtil.isEmpty(nodes)) {
+				for(String node : nodes.split(",")) {
+					if(!strUtil.isEmpty(node.trim()))
+						cache.addPeer(node.trim());
+				}
+			}
+			// nodes deployed in the same JVM are peers of each other
+			for(PeerDocumentCache other : peerCaches.values()) {
+				other.addPeer(cache.getSelfURL());
+				cache.addPeer(other.getSelfURL());
+			}
+			if(peerCaches.isEmpty()) {
+				WebServiceClient.setDefaultCache(cache);
+			}
+			peerCaches.put(u.getPort(), cache);
+			logger.info("Deployed peer cache at " + cache.getSelfURL() + PeerDocumentCache.CONTEXT_PATH + 
+					", peers: " + cache.getPeers());
+		}
+	}
+
+	/**
+	 * Returns the peer cache deployed at the given port, or null.
+	 */
+	public static PeerDocumentCache getPeerCache(int port) {
+		synchronized (peerCaches) {
+			return peerCaches.get(port);
+		}
+	}
+
 	private static void addCORSHeaders(com.sun.net.httpserver.HttpExchange ex) {
 		// Allow CORS policy (cross-domain requests, from Web browsers)
 		ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
@@ -0,0 +1,372 @@
+package io.hummer.util.ws;
+
+import io.hummer.util.Configuration;
+import io.hummer.util.coll.ConsistentHashRing;
+import io.hummer.util.io.IOUtil;
+import io.hummer.util.log.LogUtil;
+import io.hummer.util.par.GlobalThreadPool;
+import io.hummer.util.persist.CacheMetrics;
+import io.hummer.util.persist.CacheValueCodec;
+import io.hummer.util.persist.IDocumentCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Document cache which shares entries with the caches of peer nodes.
+ * Each key is owned by one node, determined by a consistent hash ring over
+ * the base URLs of all known nodes. On a local miss, the owner of the key
+ * is asked for the entry before the value is loaded from its origin; values
+ * loaded from the origin are pushed to the owner. Removals are broadcast
+ * to all peers.
+ *
+ * Entries are exchanged via HTTP at {@link #CONTEXT_PATH} of each node,
+ * served by the handler returned from {@link #createHandler()}:
+ * GET returns the (encoded) value, PUT stores and DELETE removes an entry.
+ * Each request must carry the shared secret of the cluster (configured via
+ * {@link Configuration#PROP_CACHE_PEER_SECRET}) in header {@link #HEADER_SECRET};
+ * if no secret is configured, all requests are rejected.
+ *
+ * @author Waldemar Hummer
+ */
+public class PeerDocumentCache implements IDocumentCache {
+
+	public static final String CONTEXT_PATH = "/cache";
+	private static final String HEADER_CODEC = "X-Cache-Codec";
+	private static final String HEADER_FIRST_STORE_TIME = "X-Cache-FirstStoreTime";
+	private static final String HEADER_STORE_TIME = "X-Cache-StoreTime";
+	public static final String HEADER_SECRET = "X-Cache-Secret";
+	private static final int TIMEOUT_MS =
+			Configuration.getInteger(Configuration.PROP_CACHE_PEER_TIMEOUT, 1000);
+	private static final int MAX_BODY_BYTES =
+			Configuration.getInteger(Configuration.PROP_CACHE_PEER_MAX_BODY, 10*1024*1024);
+
+	private static final Logger logger = LogUtil.getLogger(PeerDocumentCache.class);
+
+	private final IDocumentCache local;
+	private final String selfURL;
+	private final byte[] secret;
+	private final ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+
+	/**
+	 * @param local the local cache of this node
+	 * @param selfURL the base URL (protocol, host and port) of this node
+	 */
+	public PeerDocumentCache(IDocumentCache local, String selfURL) {
+		this(local, selfURL, Configuration.getString(Configuration.PROP_CACHE_PEER_SECRET));
+	}
+
+	/**
+	 * @param local the local cache of this node
+	 * @param selfURL the base URL (protocol, host and port) of this node
+	 * @param secret the secret shared by all nodes, or null to reject all peer requests
+	 */
+	public PeerDocumentCache(IDocumentCache local, String selfURL, String secret) {
+		this.local = local;
+		this.selfURL = normalize(selfURL);
+		this.secret = secret == null || secret.trim().isEmpty() ? null : toBytes(secret.trim());
+		if(this.secret == null) {
+			logger.warn("No secret configured for peer cache " + this.selfURL +
+					" (" + Configuration.PROP_CACHE_PEER_SECRET + "), rejecting all peer requests.");
+		}
+		ring.add(this.selfURL);
+	}
+
+	public void addPeer(String baseURL) {
+		ring.add(normalize(baseURL));
+	}
+	public void removePeer(String baseURL) {
+		String url = normalize(baseURL);
+		if(!url.equals(selfURL)) {
+			ring.remove(url);
+		}
+	}
+	public String getSelfURL() {
+		return selfURL;
+	}
+	public List<String> getPeers() {
+		List<String> peers = ring.getNodes();
+		peers.remove(selfURL);
+		return peers;
+	}
+
+	/**
+	 * Returns the base URL of the node which owns the given key.
+	 */
+	public String getOwner(String key) {
+		return ring.get(key);
+	}
+
+	public CacheEntry get(String key) {
+		return local.get(key);
+	}
+
+	public CacheEntry get(String key, final CacheLoader loader) throws Exception {
+		return local.get(key, new CacheLoader() {
+			public CacheEntry load(String key) throws Exception {
+				String owner = getOwner(key);
+				if(owner.equals(selfURL)) {
+					return loader.load(key);
+				}
+				try {
+					CacheEntry e = fetch(owner, key);
+					if(e != null) {
+						return e;
+					}
+				} catch (Exception e) {
+					logger.info("Unable to get cache entry '" + key + "' from peer " + owner + ": " + e);
+				}
+				CacheEntry e = loader.load(key);
+				if(e != null) {
+					sendAsync("PUT", owner, e);
+				}
+				return e;
+			}
+		});
+	}
+
+	public CacheEntry put(String key, String value) {
+		return put(new CacheEntry(key, value));
+	}
+
+	public CacheEntry put(CacheEntry entry) {
+		CacheEntry e = local.put(entry);
+		String owner = getOwner(entry.key);
+		if(!owner.equals(selfURL)) {
+			sendAsync("PUT", owner, e != null ? e : entry);
+		}
+		return e;
+	}
+
+	public void putWithoutWaiting(String key, String value) {
+		put(key, value);
+	}
+
+	public void remove(String key) {
+		local.remove(key);
+		CacheEntry e = new CacheEntry();
+		e.key = key;
+		for(String peer : getPeers()) {
+			sendAsync("DELETE", peer, e);
+		}
+	}
+
+	public List<String> getKeys(String nameLike) {
+		return local.getKeys(nameLike);
+	}
+
+	public List<String> getKeys(String nameLike, int firstResult, int maxResults) {
+		return local.getKeys(nameLike, firstResult, maxResults);
+	}
+
+	public CacheMetrics getMetrics() {
+		return local.getMetrics();
+	}
+
+	public IDocumentCache getLocal() {
+		return local;
+	}
+
+	/**
+	 * Returns the HTTP handler which serves the local cache to peer nodes.
+	 */
+	public HttpHandler createHandler() {
+		return new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				try {
+					handleRequest(ex);
+				} catch (Exception e) {
+					logger.warn("Unable to handle peer cache request " + ex.getRequestURI(), e);
+					ex.sendResponseHeaders(500, -1);
+				} finally {
+					ex.close();
+				}
+			}
+		};
+	}
+
+	private void handleRequest(HttpExchange ex) throws Exception {
+		if(!isAuthorized(ex.getRequestHeaders().getFirst(HEADER_SECRET))) {
+			logger.warn("Rejected unauthorized peer cache request from " + ex.getRemoteAddress());
+			ex.sendResponseHeaders(403, -1);
+			return;
+		}
+		String key = getKeyParameter(ex.getRequestURI().getRawQuery());
+		if(key == null) {
+			ex.sendResponseHeaders(400, -1);
+			return;
+		}
+		String method = ex.getRequestMethod();
+		if("GET".equals(method)) {
+			CacheEntry e = local.get(key);
+			if(e == null || e.valueData == null) {
+				ex.sendResponseHeaders(404, -1);
+				return;
+			}
+			ex.getResponseHeaders().add(HEADER_CODEC, String.valueOf(getCodec(e)));
+			ex.getResponseHeaders().add(HEADER_FIRST_STORE_TIME, String.valueOf(e.firstStoreTime));
+			ex.getResponseHeaders().add(HEADER_STORE_TIME, String.valueOf(e.storeTime));
+			ex.sendResponseHeaders(200, e.valueData.length);
+			OutputStream out = ex.getResponseBody();
+			out.write(e.valueData);
+			out.close();
+		} else if("PUT".equals(method)) {
+			String length = ex.getRequestHeaders().getFirst("Content-Length");
+			byte[] data = null;
+			if(length == null || Long.parseLong(length) <= MAX_BODY_BYTES) {
+				data = readBody(ex.getRequestBody(), MAX_BODY_BYTES);
+			}
+			if(data == null) {
+				ex.sendResponseHeaders(413, -1);
+				return;
+			}
+			CacheEntry e = new CacheEntry();
+			e.key = key;
+			e.valueCodec = parseCodec(ex.getRequestHeaders().getFirst(HEADER_CODEC));
+			e.valueData = data;
+			local.put(e);
+			ex.sendResponseHeaders(204, -1);
+		} else if("DELETE".equals(method)) {
+			local.remove(key);
+			ex.sendResponseHeaders(204, -1);
+		} else {
+			ex.sendResponseHeaders(405, -1);
+		}
+	}
+
+	private CacheEntry fetch(String peer, String key) throws Exception {
+		HttpURLConnection conn = openConnection(peer, key, "GET");
+		try {
+			if(conn.getResponseCode() != 200) {
+				return null;
+			}
+			CacheEntry e = new CacheEntry();
+			e.key = key;
+			e.valueCodec = parseCodec(conn.getHeaderField(HEADER_CODEC));
+			e.firstStoreTime = Long.parseLong(conn.getHeaderField(HEADER_FIRST_STORE_TIME));
+			e.storeTime = Long.parseLong(conn.getHeaderField(HEADER_STORE_TIME));
+			e.valueData = IOUtil.readBytes(conn.getInputStream());
+			return e;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private void sendAsync(final String method, final String peer, final CacheEntry e) {
+		if("PUT".equals(method) && e.valueData == null) {
+			return;
+		}
+		GlobalThreadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					HttpURLConnection conn = openConnection(peer, e.key, method);
+					try {
+						if("PUT".equals(method)) {
+							conn.setDoOutput(true);
+							conn.setRequestProperty(HEADER_CODEC, String.valueOf(getCodec(e)));
+							OutputStream out = conn.getOutputStream();
+							out.write(e.valueData);
+							out.close();
+						}
+						conn.getResponseCode();
+					} finally {
+						conn.disconnect();
+					}
+				} catch (Exception ex) {
+					logger.info("Unable to send " + method + " for cache entry '" +
+							e.key + "' to peer " + peer + ": " + ex);
+				}
+			}
+		});
+	}
+
+	private HttpURLConnection openConnection(String peer, String key, String method) throws Exception {
+		URL url = new URL(peer + CONTEXT_PATH + "?key=" + URLEncoder.encode(key, "UTF-8"));
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setRequestMethod(method);
+		conn.setConnectTimeout(TIMEOUT_MS);
+		conn.setReadTimeout(TIMEOUT_MS);
+		if(secret != null) {
+			conn.setRequestProperty(HEADER_SECRET, new String(secret, "UTF-8"));
+		}
+		return conn;
+	}
+
+	private boolean isAuthorized(String header) {
+		if(secret == null || header == null) {
+			return false;
+		}
+		/* constant-time comparison */
+		return MessageDigest.isEqual(secret, toBytes(header.trim()));
+	}
+
+	/**
+	 * Reads the given stream, or returns null if it has more than maxBytes bytes.
+	 */
+	private static byte[] readBody(InputStream in, int maxBytes) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int len;
+		try {
+			while((len = in.read(buffer)) >= 0) {
+				bos.write(buffer, 0, len);
+				if(bos.size() > maxBytes) {
+					return null;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] toBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String getKeyParameter(String query) throws Exception {
+		if(query == null) {
+			return null;
+		}
+		for(String param : query.split("&")) {
+			if(param.startsWith("key=")) {
+				return URLDecoder.decode(param.substring("key=".length()), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	private static byte getCodec(CacheEntry e) {
+		return e.valueCodec == null ? CacheValueCodec.CODEC_RAW : e.valueCodec;
+	}
+	private static byte parseCodec(String codec) {
+		return codec == null ? CacheValueCodec.CODEC_RAW : Byte.parseByte(codec);
+	}
+
+	private static String normalize(String baseURL) {
+		String url = baseURL.trim();
+		while(url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		return url;
+	}
+
+}
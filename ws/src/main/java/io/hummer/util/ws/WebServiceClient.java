@@ -20,12 +20,13 @@ package io.hummer.util.ws;
 
 import io.hummer.util.Configuration;
 import io.hummer.util.coll.CollectionsUtil;
+import io.hummer.util.coll.LimitedSizeHashMap;
 import io.hummer.util.log.LogUtil;
 import io.hummer.util.misc.ExceptionsUtil;
 import io.hummer.util.misc.PerformanceInterceptor;
 import io.hummer.util.misc.PerformanceInterceptor.EventType;
 import io.hummer.util.net.SSLContextInitializer;
-import io.hummer.util.par.Parallelization;
+import io.hummer.util.perf.MemoryPressureMonitor;
 import io.hummer.util.persist.IDocumentCache;
 import io.hummer.util.persist.IDocumentCache.CacheEntry;
 import io.hummer.util.str.StringUtil;
@@ -112,24 +113,61 @@ public class WebServiceClient {
 	private XMLUtil xmlUtil = new XMLUtil();
 	private StringUtil strUtil = new StringUtil();
 	private List<Element> eprParamsAndProps = new LinkedList<Element>();
-	private IDocumentCache cache = new IDocumentCache.DocumentCache();
+	private IDocumentCache cache = defaultCache;
 
 	private static final int CONNECT_TIMEOUT_MS = 1000*5;
 	private static final int READ_TIMEOUT_MS = 1000*60*3;
 	private static final int READ_TIMEOUT_VERYLONG_MS = 1000*60*60;
 	private static final int READ_TIMEOUT_HTTP_GET_MS = 1000*7;
 	private static final int READ_TIMEOUT_HTTP_GET_VERYLONG_MS = 1000*60*60;
+	/** cache used by new clients, e.g., a {@link PeerDocumentCache} of a deployed node */
+	private static volatile IDocumentCache defaultCache = new IDocumentCache.DocumentCache();
 	private static Map<EndpointReference, WebServiceClient> clientCache = new HashMap<EndpointReference, WebServiceClient>();
+	/** parsed documents of recent GET requests, valid as long as the respective cache entry is unchanged */
+	private static final Map<String,CachedElement> parsedCache = new LimitedSizeHashMap<String,CachedElement>(
+			Configuration.getInteger(Configuration.PROP_CACHE_PARSED_SIZE, 100));
 	private static final Logger logger = LogUtil.getLogger(WebServiceClient.class);
 	public static final int REQUEST_RETRIES = 0; // TODO: make configurable (?)
 	private static final SortedMap<String,AtomicLong> lastRequestedHosts = new TreeMap<String,AtomicLong>();
 	
+	private static class CachedElement {
+		final Element element;
+		/** store times of the cache entry this element has been parsed from */
+		final long storeTime;
+		final long firstStoreTime;
+		CachedElement(Element element, CacheEntry entry) {
+			this.element = element;
+			this.storeTime = entry.storeTime;
+			this.firstStoreTime = entry.firstStoreTime;
+		}
+		boolean isParsedFrom(CacheEntry entry) {
+			return entry.storeTime != 0 && entry.storeTime == storeTime && 
+					entry.firstStoreTime == firstStoreTime;
+		}
+	}
+
 	static {
 		try {
 			SSLContextInitializer.init();
 		} catch (Exception e) {
 			logger.warn("Unexpected error.", e);
 		}
+		MemoryPressureMonitor.register("WebServiceClient.parsedCache", MemoryPressureMonitor.PRIORITY_LOW, 
+				new MemoryPressureMonitor.Shrinkable() {
+			public int shrink(double fraction) {
+				synchronized (parsedCache) {
+					return MemoryPressureMonitor.removeFraction(parsedCache, fraction);
+				}
+			}
+		});
+		MemoryPressureMonitor.register("WebServiceClient.clientCache", MemoryPressureMonitor.PRIORITY_LOW, 
+				new MemoryPressureMonitor.Shrinkable() {
+			public int shrink(double fraction) {
+				synchronized (clientCache) {
+					return MemoryPressureMonitor.removeFraction(clientCache, fraction);
+				}
+			}
+		});
 	}
 	
 	protected WebServiceClient(EndpointReference epr) {
@@ -439,8 +477,8 @@ public class WebServiceClient {
 		return invResult;
 	}
 	
-	private InvocationResult doInvokeGET(String parameters, Map<String, String> httpHeaders, 
-			int retries, long connectTimeoutMS, long readTimeoutMS, boolean doUseCache) throws Exception {
+	private InvocationResult doInvokeGET(String parameters, final Map<String, String> httpHeaders, 
+			int retries, final long connectTimeoutMS, final long readTimeoutMS, boolean doUseCache) throws Exception {
 		if(retries < 0)
 			throw new Exception("Invocation to " + endpointURL + " failed: " + xmlUtil.toString(parameters));
 		
@@ -448,7 +486,7 @@ public class WebServiceClient {
 		if(!lastRequestedHosts.containsKey(host)) {
 			lastRequestedHosts.put(host, new AtomicLong());
 		}
-		Object lockForTargetHost = lastRequestedHosts.get(host);
+		final Object lockForTargetHost = lastRequestedHosts.get(host);
 
 		parameters = parameters.trim();
 		String urlString = endpointURL;
@@ -458,24 +496,72 @@ public class WebServiceClient {
 		}
 
 		if(doUseCache) {
-			/** retrieve result from document cache */
-			CacheEntry existing = cache.get(urlString);
-			if(existing != null && !strUtil.isEmpty(existing.value)) {
-				String valueShort = (String)existing.value;
-				if(valueShort.length() > 200)
-					valueShort = valueShort.substring(0, 200) + "...";
-				AtomicReference<Element> eRef = new AtomicReference<Element>();
-				Parallelization.warnIfNoResultAfter(eRef, "! Client could not convert element (" + existing.value.length() + " bytes) within 15 seconds: " + valueShort, 15*1000);
-				Parallelization.warnIfNoResultAfter(eRef, "! Client could not convert element (" + existing.value.length() + " bytes) within 40 seconds: " + valueShort, 40*1000);
-				Element e = xmlUtil.toElement((String)existing.value);
-				eRef.set(e);
-				logger.info("Result exists in cache for URL " + urlString + " - " + e + " - " + this.xmlUtil.toString().length());
+			/** retrieve result from document cache, or load it exactly once for concurrent requests */
+			final AtomicReference<Element> loaded = new AtomicReference<Element>();
+			CacheEntry existing = cache.get(urlString, new IDocumentCache.CacheLoader() {
+				public CacheEntry load(String key) throws Exception {
+					Element resultElement = doFetchGET(key, httpHeaders, lockForTargetHost, connectTimeoutMS, readTimeoutMS);
+					loaded.set(resultElement);
+					return new CacheEntry(key, xmlUtil.toFastInfoset(resultElement));
+				}
+			});
+			Element e = loaded.get();
+			if(e == null && existing != null) {
+				/** reuse the parsed result, if it has been parsed from the same cache entry */
+				Element parsed = getParsedFromCache(urlString, existing);
+				if(parsed != null) {
+					return new InvocationResult(parsed);
+				}
+				if(existing.isBinary()) {
+					e = xmlUtil.fromFastInfoset(existing.getValueBytes());
+				} else if(!strUtil.isEmpty(existing.getValue())) {
+					e = xmlUtil.toElement(existing.getValue());
+				}
+				if(e != null) {
+					logger.info("Result exists in cache for URL " + urlString);
+				}
+			}
+			if(e != null) {
+				if(existing != null) {
+					putParsedToCache(urlString, existing, e);
+				}
 				return new InvocationResult(e);
 			}
 		}
 
+		return new InvocationResult(doFetchGET(urlString, httpHeaders, 
+				lockForTargetHost, connectTimeoutMS, readTimeoutMS));
+	}
+
+	private Element getParsedFromCache(String urlString, CacheEntry entry) throws Exception {
+		CachedElement cached;
+		synchronized (parsedCache) {
+			cached = parsedCache.get(urlString);
+		}
+		if(cached == null) {
+			return null;
+		}
+		if(!cached.isParsedFrom(entry)) {
+			/* the entry has been refreshed or replaced since */
+			synchronized (parsedCache) {
+				parsedCache.remove(urlString);
+			}
+			return null;
+		}
+		/* callers may modify the returned element, hence we hand out copies */
+		return xmlUtil.cloneInNewDocument(cached.element);
+	}
+
+	private void putParsedToCache(String urlString, CacheEntry entry, Element e) throws Exception {
+		CachedElement cached = new CachedElement(xmlUtil.cloneInNewDocument(e), entry);
+		synchronized (parsedCache) {
+			parsedCache.put(urlString, cached);
+		}
+	}
+
+	private Element doFetchGET(String urlString, Map<String, String> httpHeaders, 
+			Object lockForTargetHost, long connectTimeoutMS, long readTimeoutMS) throws Exception {
 		pauseToAvoidSpamming();
-		
 
 		URL url = new URL(urlString);
 		URLConnection c = url.openConnection();
@@ -518,15 +604,9 @@ public class WebServiceClient {
 		Element resultElement = xmlUtil.toElement(result);
 		PerformanceInterceptor.event(EventType.FINISH_STRING_TO_XML, tmpID2);
 
-		if(doUseCache) {
-			/** put result element to document cache */
-			cache.putWithoutWaiting(urlString, xmlUtil.toString(resultElement, true));
-		}
-		
-		InvocationResult invResult = new InvocationResult(resultElement);
 		PerformanceInterceptor.event(EventType.FINISH_RESPONSE_TO_XML, tmpID1);
 
-		return invResult;
+		return resultElement;
 	}
 	
 	private static StringBuilder getPageUsingHtmlUnit(String urlString, Map<String, String> httpHeaders, 
@@ -617,7 +697,20 @@ public class WebServiceClient {
 	public String getEndpointURL() {
 		return endpointURL;
 	}
-	
+
+	public IDocumentCache getCache() {
+		return cache;
+	}
+	public void setCache(IDocumentCache cache) {
+		this.cache = cache;
+	}
+	public static IDocumentCache getDefaultCache() {
+		return defaultCache;
+	}
+	public static void setDefaultCache(IDocumentCache cache) {
+		defaultCache = cache;
+	}
+
 	public static Definition getWsdlDefinition(String wsdlURL) throws Exception {
 		WSDLFactory wsdlFactory = WSDLFactory.newInstance();
 
@@ -0,0 +1,158 @@
+package io.hummer.util.ws;
+
+import io.hummer.util.persist.IDocumentCache.CacheEntry;
+import io.hummer.util.persist.IDocumentCache.CacheLoader;
+import io.hummer.util.persist.MappedFileDocumentCache;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class PeerDocumentCacheTest {
+
+	private static final int NUM_NODES = 3;
+	private static final String SECRET = "test-secret";
+
+	private final List<HttpServer> servers = new ArrayList<HttpServer>();
+	private final List<PeerDocumentCache> nodes = new ArrayList<PeerDocumentCache>();
+	private final List<MappedFileDocumentCache> caches = new ArrayList<MappedFileDocumentCache>();
+	private final List<File> dirs = new ArrayList<File>();
+	private final AtomicInteger originLoads = new AtomicInteger();
+	private final CacheLoader origin = new CacheLoader() {
+		public CacheEntry load(String key) {
+			originLoads.incrementAndGet();
+			return new CacheEntry(key, "value of " + key);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		for(int i = 0; i < NUM_NODES; i ++) {
+			HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			File dir = File.createTempFile("peercache", "");
+			dir.delete();
+			dirs.add(dir);
+			MappedFileDocumentCache local = new MappedFileDocumentCache(dir, 1024*1024);
+			caches.add(local);
+			PeerDocumentCache cache = new PeerDocumentCache(local,
+					"http://localhost:" + server.getAddress().getPort(), SECRET);
+			server.createContext(PeerDocumentCache.CONTEXT_PATH, cache.createHandler());
+			server.start();
+			servers.add(server);
+			nodes.add(cache);
+		}
+		for(PeerDocumentCache n1 : nodes) {
+			for(PeerDocumentCache n2 : nodes) {
+				n1.addPeer(n2.getSelfURL());
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for(HttpServer server : servers) {
+			server.stop(0);
+		}
+		for(MappedFileDocumentCache cache : caches) {
+			cache.close();
+		}
+		for(File dir : dirs) {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testLoadFromPeerAndInvalidate() throws Exception {
+		PeerDocumentCache requester = nodes.get(0);
+		String key = remoteKey(requester);
+		PeerDocumentCache owner = nodeByURL(requester.getOwner(key));
+
+		assertEquals("value of " + key, requester.get(key, origin).getValue());
+		assertEquals(1, originLoads.get());
+		/* the value is pushed to the owner asynchronously */
+		waitFor(owner, key, true);
+
+		for(PeerDocumentCache n : nodes) {
+			assertEquals("value of " + key, n.get(key, origin).getValue());
+		}
+		assertEquals(1, originLoads.get());
+
+		nodes.get(NUM_NODES - 1).remove(key);
+		for(PeerDocumentCache n : nodes) {
+			waitFor(n, key, false);
+		}
+	}
+
+	@Test
+	public void testKeepOwnerStoreTime() throws Exception {
+		PeerDocumentCache requester = nodes.get(0);
+		String key = remoteKey(requester);
+		CacheEntry stored = nodeByURL(requester.getOwner(key)).getLocal().put(key, "owner value");
+		/* a copy with a fresh store time would differ */
+		Thread.sleep(20);
+
+		assertEquals("owner value", requester.get(key, origin).getValue());
+		assertEquals(0, originLoads.get());
+		CacheEntry copy = requester.getLocal().get(key);
+		assertEquals(stored.storeTime, copy.storeTime);
+		assertEquals(stored.firstStoreTime, copy.firstStoreTime);
+	}
+
+	@Test
+	public void testRejectUnauthorized() throws Exception {
+		PeerDocumentCache node = nodes.get(0);
+		node.getLocal().put("key1", "value1");
+		URL url = new URL(node.getSelfURL() + PeerDocumentCache.CONTEXT_PATH + "?key=key1");
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		assertEquals(403, conn.getResponseCode());
+		conn.disconnect();
+		conn = (HttpURLConnection)url.openConnection();
+		conn.setRequestProperty(PeerDocumentCache.HEADER_SECRET, "wrong");
+		assertEquals(403, conn.getResponseCode());
+		conn.disconnect();
+		conn = (HttpURLConnection)url.openConnection();
+		conn.setRequestProperty(PeerDocumentCache.HEADER_SECRET, SECRET);
+		assertEquals(200, conn.getResponseCode());
+		conn.disconnect();
+	}
+
+	/**
+	 * Returns a key which is owned by another node than the given one.
+	 */
+	private static String remoteKey(PeerDocumentCache node) {
+		for(int i = 0; ; i ++) {
+			String key = "http://example.com/doc" + i;
+			if(!node.getOwner(key).equals(node.getSelfURL())) {
+				return key;
+			}
+		}
+	}
+
+	private PeerDocumentCache nodeByURL(String url) {
+		for(PeerDocumentCache n : nodes) {
+			if(n.getSelfURL().equals(url))
+				return n;
+		}
+		return null;
+	}
+
+	private static void waitFor(PeerDocumentCache node, String key, boolean present) throws Exception {
+		for(int i = 0; i < 100 && (node.getLocal().get(key) != null) != present; i ++) {
+			Thread.sleep(50);
+		}
+		assertEquals(present, node.getLocal().get(key) != null);
+	}
+
+}
@@ -46,6 +46,9 @@ import net.sf.json.xml.XMLSerializer;
 import net.sf.saxon.dom.ElementOverNodeInfo;
 import net.sf.saxon.tree.tiny.TinyDocumentImpl;
 
+import com.sun.xml.fastinfoset.dom.DOMDocumentParser;
+import com.sun.xml.fastinfoset.dom.DOMDocumentSerializer;
+
 import org.apache.log4j.Logger;
 import org.apache.xml.security.c14n.Canonicalizer;
 import org.ccil.cowan.tagsoup.AutoDetector;
@@ -68,6 +71,7 @@ import io.hummer.util.io.IOUtil;
 import io.hummer.util.log.LogUtil;
 import io.hummer.util.misc.PerformanceInterceptor;
 import io.hummer.util.misc.PerformanceInterceptor.EventType;
+import io.hummer.util.perf.MemoryPressureMonitor;
 
 public class XMLUtil {
 
@@ -82,6 +86,8 @@ public class XMLUtil {
 		}
 	};
 	private static final List<Class<?>> defaultJaxbContextClasses;
+	/** number of predefined classes, which are never removed from the JAXB context */
+	private static int numPredefinedJaxbClasses;
 	private static JAXBContext defaultJaxbContext;
 	private static XMLUtil instance;
 
@@ -128,6 +134,13 @@ public class XMLUtil {
 				throw new RuntimeException(e1);
 			}
 		}
+		numPredefinedJaxbClasses = defaultJaxbContextClasses.size();
+		MemoryPressureMonitor.register("XMLUtil.jaxbContext", MemoryPressureMonitor.PRIORITY_HIGH, 
+				new MemoryPressureMonitor.Shrinkable() {
+			public int shrink(double fraction) {
+				return shrinkJaxbContext(fraction);
+			}
+		});
 		org.apache.xml.security.Init.init();
 	}
 
@@ -426,6 +439,35 @@ public class XMLUtil {
 	public Element clone(Element element) throws Exception {
 		return toElement(toString(element));
 	}
+
+	/**
+	 * Creates a deep copy of the given element in a new document,
+	 * without serializing and re-parsing the element.
+	 */
+	public Element cloneInNewDocument(Element element) throws ParserConfigurationException {
+		Document d = newDocumentBuilder().newDocument();
+		synchronized(element) {
+			d.appendChild(d.importNode(element, true));
+		}
+		return d.getDocumentElement();
+	}
+
+	/**
+	 * Serializes the given element to the binary Fast Infoset format.
+	 */
+	public byte[] toFastInfoset(Element element) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DOMDocumentSerializer serializer = new DOMDocumentSerializer();
+		serializer.setOutputStream(baos);
+		serializer.serialize(element);
+		return baos.toByteArray();
+	}
+
+	public Element fromFastInfoset(byte[] data) throws Exception {
+		Document d = newDocumentBuilder().newDocument();
+		new DOMDocumentParser().parse(d, new ByteArrayInputStream(data));
+		return d.getDocumentElement();
+	}
 	
 	public InputSource sourceToInputSource(Source source) throws Exception {
 		if(source instanceof SAXSource) {
@@ -806,6 +848,30 @@ public class XMLUtil {
 		return result;
 	}
 
+	/**
+	 * Removes the given fraction of dynamically added classes (oldest first) 
+	 * from the default JAXB context, and re-creates the context.
+	 */
+	private static int shrinkJaxbContext(double fraction) {
+		synchronized(defaultJaxbContextClasses) {
+			int dynamic = defaultJaxbContextClasses.size() - numPredefinedJaxbClasses;
+			int toRemove = (int)Math.ceil(dynamic * fraction);
+			if(toRemove <= 0) {
+				return 0;
+			}
+			defaultJaxbContextClasses.subList(numPredefinedJaxbClasses, 
+					numPredefinedJaxbClasses + toRemove).clear();
+			try {
+				defaultJaxbContext = JAXBContext
+						.newInstance(defaultJaxbContextClasses
+								.toArray(new Class[0]));
+			} catch (JAXBException e) {
+				logger.warn("Unable to re-create JAXB context.", e);
+			}
+			return toRemove;
+		}
+	}
+
 	private JAXBContext getJaxbContext(Class<?> jaxbClass,
 			boolean doCacheContext) throws Exception {
 		synchronized(defaultJaxbContextClasses) {